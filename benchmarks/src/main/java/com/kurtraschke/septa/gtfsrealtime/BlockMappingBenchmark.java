@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.kurtraschke.septa.gtfsrealtime.services.BlockToTripMapperService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BlockToTripMapperService#findCandidateTrips} over a
+ * synthetic bus-sized schedule, for random blocks at random times of the
+ * service day, both one block at a time and as the poll-sized batch that
+ * {@link TripDescriptorCache} resolves each cycle.
+ *
+ * @author kurt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BlockMappingBenchmark {
+
+  private static final int QUERIES = 4096;
+
+  @Param("1400")
+  private int blocks;
+
+  @Param("10")
+  private int tripsPerBlock;
+
+  @Param("40")
+  private int stopsPerTrip;
+
+  @Param("600")
+  private int layoverWindow;
+
+  private BlockToTripMapperService _mapper;
+  private String[] _blockIds;
+  private long[] _times;
+  private String[] _batchBlockIds;
+  private long[] _batchTimes;
+  private int _next;
+
+  @Setup
+  public void setup() {
+    _mapper = new BlockToTripMapperService(SyntheticGtfs.buildSnapshot(blocks,
+            tripsPerBlock, stopsPerTrip, 60, 10));
+
+    Random r = new Random(42);
+    _blockIds = new String[QUERIES];
+    _times = new long[QUERIES];
+
+    for (int i = 0; i < QUERIES; i++) {
+      _blockIds[i] = Integer.toString(SyntheticGtfs.FIRST_BLOCK
+              + r.nextInt(blocks));
+
+      Calendar c = Calendar.getInstance();
+      c.set(Calendar.HOUR_OF_DAY, 5 + r.nextInt(12));
+      c.set(Calendar.MINUTE, r.nextInt(60));
+      _times[i] = TimeUnit.MILLISECONDS.toSeconds(c.getTimeInMillis());
+    }
+
+    _batchBlockIds = new String[blocks];
+    _batchTimes = new long[blocks];
+
+    for (int i = 0; i < blocks; i++) {
+      _batchBlockIds[i] = _blockIds[i % QUERIES];
+      _batchTimes[i] = _times[i % QUERIES];
+    }
+  }
+
+  /**
+   * With the synthetic schedule's ten-minute layovers, most queries near a
+   * trip boundary find two candidates.
+   */
+  @Benchmark
+  public Object findCandidateTrips() {
+    int i = _next++ & (QUERIES - 1);
+
+    return _mapper.findCandidateTrips(SyntheticGtfs.AGENCY_ID,
+            _blockIds[i], _times[i], _mapper.getAutoMaxLookBack(),
+            layoverWindow);
+  }
+
+  /**
+   * One batch holds as many queries as there are blocks, as one poll would.
+   */
+  @Benchmark
+  public Object findCandidateTripsBatch() {
+    return _mapper.findCandidateTrips(SyntheticGtfs.AGENCY_ID, _batchBlockIds,
+            _batchTimes, _mapper.getAutoMaxLookBack(), layoverWindow);
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics;
+import com.kurtraschke.septa.gtfsrealtime.model.Bus;
+import com.kurtraschke.septa.gtfsrealtime.model.Train;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleSnapshot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full refresh cycle of the provider: processing every vehicle of
+ * one poll, committing the batch, and serializing the resulting feed.
+ *
+ * The moving benchmarks replay consecutive polls, one poll interval apart,
+ * of vehicles following their schedules, so every vehicle moves a plausible
+ * distance, is resolved to a trip and is published with a trip update; after
+ * the last poll they carry on from the first poll's time of day on the next
+ * day. The stationary benchmarks replay the first poll at a fixed time, so
+ * every vehicle is unchanged. The trial fails if any position was rejected as
+ * an implausible jump, if any bus could not be placed on its trip, or if no
+ * trip updates were published.
+ *
+ * @author kurt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ProviderBenchmark {
+
+  /**
+   * Seconds between bus polls, as with the default refreshInterval.bus.
+   */
+  private static final int BUS_POLL_INTERVAL = 60;
+
+  /**
+   * Seconds between rail polls, as with the default refreshInterval.rail.
+   */
+  private static final int RAIL_POLL_INTERVAL = 30;
+
+  private static final int POLLS = 180;
+
+  /**
+   * Time of the first poll, in seconds past midnight.
+   */
+  private static final int FIRST_POLL = 12 * 60 * 60;
+
+  @Param("1400")
+  private int buses;
+
+  @Param("200")
+  private int trains;
+
+  private SeptaRealtimeProvider _provider;
+  private SeptaRealtimeMetrics _metrics;
+  private SerializingSink _vehiclePositionsSink;
+  private SerializingSink _tripUpdatesSink;
+  private Collection<Bus>[] _busPolls;
+  private Collection<Train>[] _trainPolls;
+  private long _midnight;
+  private long _busMidnight;
+  private long _trainMidnight;
+  private int _busPoll;
+  private int _trainPoll;
+
+  @Setup
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void setup() {
+    ScheduleSnapshot busSchedule = SyntheticGtfs.buildSnapshot(buses, 10, 40,
+            60, 10);
+    ScheduleSnapshot railSchedule = SyntheticGtfs.buildSnapshot(trains, 18,
+            15, 55, 5);
+
+    _vehiclePositionsSink = new SerializingSink();
+    _tripUpdatesSink = new SerializingSink();
+    _metrics = new SeptaRealtimeMetrics();
+
+    _provider = new SeptaRealtimeProvider();
+    _provider.setVehiclePositionsSink(_vehiclePositionsSink);
+    _provider.setTripUpdateSink(_tripUpdatesSink);
+    _provider.setAlertsSink(new SerializingSink());
+    _provider.setMetrics(_metrics);
+    _provider.initializeSchedules(busSchedule, railSchedule);
+
+    _busPolls = new Collection[POLLS];
+    _trainPolls = new Collection[POLLS];
+
+    for (int i = 0; i < POLLS; i++) {
+      _busPolls[i] = SyntheticPayloads.busesAt(busSchedule, buses,
+              FIRST_POLL + i * BUS_POLL_INTERVAL);
+      _trainPolls[i] = SyntheticPayloads.trainsAt(railSchedule, trains,
+              FIRST_POLL + i * RAIL_POLL_INTERVAL);
+    }
+
+    Calendar midnight = Calendar.getInstance(
+            TimeZone.getTimeZone(SyntheticGtfs.TIME_ZONE));
+    midnight.set(Calendar.HOUR_OF_DAY, 0);
+    midnight.set(Calendar.MINUTE, 0);
+    midnight.set(Calendar.SECOND, 0);
+    midnight.set(Calendar.MILLISECOND, 0);
+    _midnight = TimeUnit.MILLISECONDS.toSeconds(midnight.getTimeInMillis());
+    _busMidnight = _midnight;
+    _trainMidnight = _midnight;
+  }
+
+  @TearDown
+  public void checkFeeds() {
+    long implausible = _metrics.getBusMetrics().getPositionsImplausible()
+            .getCount()
+            + _metrics.getRailMetrics().getPositionsImplausible().getCount();
+
+    if (implausible > 0) {
+      throw new IllegalStateException(implausible
+              + " positions were rejected as implausible jumps");
+    }
+
+    long offTrip = _metrics.getBusMetrics().getVehiclesOffTrip().getCount();
+
+    if (offTrip > 0) {
+      throw new IllegalStateException(offTrip
+              + " bus positions could not be placed on their trips");
+    }
+
+    if (_tripUpdatesSink.getEntityCount() == 0) {
+      throw new IllegalStateException("No trip updates were published");
+    }
+  }
+
+  @Benchmark
+  public byte[] busesMoving() {
+    if (_busPoll == POLLS) {
+      _busPoll = 0;
+      _busMidnight = nextMidnight(_busMidnight);
+    }
+
+    long now = _busMidnight + FIRST_POLL + _busPoll * BUS_POLL_INTERVAL;
+    return processBuses(_busPolls[_busPoll++], now);
+  }
+
+  @Benchmark
+  public byte[] busesStationary() {
+    return processBuses(_busPolls[0], _midnight + FIRST_POLL);
+  }
+
+  @Benchmark
+  public byte[] trainsMoving() {
+    if (_trainPoll == POLLS) {
+      _trainPoll = 0;
+      _trainMidnight = nextMidnight(_trainMidnight);
+    }
+
+    long now = _trainMidnight + FIRST_POLL + _trainPoll * RAIL_POLL_INTERVAL;
+    return processTrains(_trainPolls[_trainPoll++], now);
+  }
+
+  @Benchmark
+  public byte[] trainsStationary() {
+    return processTrains(_trainPolls[0], _midnight + FIRST_POLL);
+  }
+
+  private byte[] processBuses(Collection<Bus> poll, long now) {
+    FeedUpdateBatch batch = new FeedUpdateBatch();
+
+    for (Bus bus : poll) {
+      _provider.processBus(bus, now, batch);
+    }
+
+    batch.commit();
+    return _tripUpdatesSink.getFeed();
+  }
+
+  private byte[] processTrains(Collection<Train> poll, long now) {
+    FeedUpdateBatch batch = new FeedUpdateBatch();
+
+    for (Train train : poll) {
+      _provider.processTrain(train, now, batch);
+    }
+
+    batch.commit();
+    return _tripUpdatesSink.getFeed();
+  }
+
+  /**
+   * @return the epoch second of the following midnight; every synthetic day
+   * runs the same blocks, so the polls can be replayed on it
+   */
+  private static long nextMidnight(long midnight) {
+    Calendar next = Calendar.getInstance(
+            TimeZone.getTimeZone(SyntheticGtfs.TIME_ZONE));
+    next.setTimeInMillis(TimeUnit.SECONDS.toMillis(midnight));
+    next.add(Calendar.DAY_OF_MONTH, 1);
+    return TimeUnit.MILLISECONDS.toSeconds(next.getTimeInMillis());
+  }
+}
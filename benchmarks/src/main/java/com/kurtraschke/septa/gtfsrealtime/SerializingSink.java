@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFullUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A sink that, like the exporter, applies each update to its entity set and
+ * then rebuilds and serializes the full feed.
+ *
+ * @author kurt
+ */
+public class SerializingSink implements GtfsRealtimeSink {
+
+  private final Map<String, FeedEntity> _entities = new LinkedHashMap<>();
+  private byte[] _feed = new byte[0];
+
+  @Override
+  public synchronized void handleFullUpdate(GtfsRealtimeFullUpdate update) {
+    _entities.clear();
+    for (FeedEntity entity : update.getEntities()) {
+      _entities.put(entity.getId(), entity);
+    }
+    serialize();
+  }
+
+  @Override
+  public synchronized void handleIncrementalUpdate(
+          GtfsRealtimeIncrementalUpdate update) {
+    for (FeedEntity entity : update.getUpdatedEntities()) {
+      _entities.put(entity.getId(), entity);
+    }
+    for (String id : update.getDeletedEntities()) {
+      _entities.remove(id);
+    }
+    serialize();
+  }
+
+  public synchronized byte[] getFeed() {
+    return _feed;
+  }
+
+  public synchronized int getEntityCount() {
+    return _entities.size();
+  }
+
+  private void serialize() {
+    FeedHeader.Builder header = FeedHeader.newBuilder();
+    header.setGtfsRealtimeVersion("1.0");
+    header.setIncrementality(Incrementality.FULL_DATASET);
+    header.setTimestamp(System.currentTimeMillis() / 1000L);
+
+    FeedMessage.Builder feed = FeedMessage.newBuilder();
+    feed.setHeader(header);
+    feed.addAllEntity(_entities.values());
+
+    _feed = feed.build().toByteArray();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Route;
+import org.onebusaway.gtfs.model.ServiceCalendar;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleSnapshot;
+
+import java.util.Calendar;
+
+/**
+ * Builds an in-memory GTFS feed shaped like the SEPTA bus and rail feeds.
+ *
+ * Blocks are numbered from {@link #FIRST_BLOCK} and repeat across the
+ * weekday, Saturday and Sunday services, as SEPTA's do. Each block runs
+ * back-to-back trips from early morning, the last of which may run past
+ * midnight. Each route runs along a straight line, alternately north-south
+ * and east-west, with its stops evenly spaced, so that a vehicle following
+ * its schedule moves at a plausible speed.
+ *
+ * @author kurt
+ */
+public class SyntheticGtfs {
+
+  public static final String AGENCY_ID = "SEPTA";
+  public static final String TIME_ZONE = "America/New_York";
+  public static final int FIRST_BLOCK = 1000;
+
+  private static final String[] SERVICES = {"WEEKDAY", "SATURDAY", "SUNDAY"};
+
+  /**
+   * Distance between consecutive stops of a route, in degrees (about 330 m of
+   * latitude).
+   */
+  private static final double STOP_SPACING = 0.003;
+
+  private SyntheticGtfs() {
+
+  }
+
+  public static ScheduleSnapshot buildSnapshot(int blocks, int tripsPerBlock,
+          int stopsPerTrip, int tripMinutes, int layoverMinutes) {
+    return ScheduleSnapshot.fromGtfs(build(blocks, tripsPerBlock,
+            stopsPerTrip, tripMinutes, layoverMinutes), new byte[0]);
+  }
+
+  public static GtfsRelationalDao build(int blocks, int tripsPerBlock,
+          int stopsPerTrip, int tripMinutes, int layoverMinutes) {
+    GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+
+    Agency agency = new Agency();
+    agency.setId(AGENCY_ID);
+    agency.setName("Synthetic SEPTA");
+    agency.setUrl("http://www.septa.org/");
+    agency.setTimezone(TIME_ZONE);
+    dao.saveEntity(agency);
+
+    ServiceDate today = new ServiceDate(Calendar.getInstance());
+
+    for (int s = 0; s < SERVICES.length; s++) {
+      ServiceCalendar sc = new ServiceCalendar();
+      sc.setServiceId(new AgencyAndId(AGENCY_ID, SERVICES[s]));
+      sc.setStartDate(today.shift(-30));
+      sc.setEndDate(today.shift(335));
+      sc.setMonday(s == 0 ? 1 : 0);
+      sc.setTuesday(s == 0 ? 1 : 0);
+      sc.setWednesday(s == 0 ? 1 : 0);
+      sc.setThursday(s == 0 ? 1 : 0);
+      sc.setFriday(s == 0 ? 1 : 0);
+      sc.setSaturday(s == 1 ? 1 : 0);
+      sc.setSunday(s == 2 ? 1 : 0);
+      dao.saveEntity(sc);
+    }
+
+    int routeCount = Math.max(1, blocks / 12);
+    Route[] routes = new Route[routeCount];
+
+    for (int r = 0; r < routeCount; r++) {
+      routes[r] = new Route();
+      routes[r].setId(new AgencyAndId(AGENCY_ID, Integer.toString(r + 1)));
+      routes[r].setAgency(agency);
+      routes[r].setShortName(Integer.toString(r + 1));
+      routes[r].setType(3);
+      dao.saveEntity(routes[r]);
+    }
+
+    int stopCount = routeCount * stopsPerTrip;
+    Stop[] stops = new Stop[stopCount];
+
+    for (int r = 0; r < routeCount; r++) {
+      double lat = 39.90 + 0.15 * ((r * 7919) % routeCount) / routeCount;
+      double lon = -75.30 + 0.20 * ((r * 104729) % routeCount) / routeCount;
+
+      for (int i = 0; i < stopsPerTrip; i++) {
+        int s = r * stopsPerTrip + i;
+
+        stops[s] = new Stop();
+        stops[s].setId(new AgencyAndId(AGENCY_ID, Integer.toString(s + 1)));
+        stops[s].setName("Stop " + (s + 1));
+        stops[s].setLat(lat + ((r % 2 == 0) ? i * STOP_SPACING : 0));
+        stops[s].setLon(lon + ((r % 2 == 1) ? i * STOP_SPACING : 0));
+        dao.saveEntity(stops[s]);
+      }
+    }
+
+    int stopInterval = tripMinutes * 60 / Math.max(1, stopsPerTrip - 1);
+
+    for (String service : SERVICES) {
+      for (int b = 0; b < blocks; b++) {
+        String blockId = Integer.toString(FIRST_BLOCK + b);
+        int route = b % routeCount;
+        int time = (4 * 60 + 30 + (b % 90)) * 60;
+
+        for (int t = 0; t < tripsPerBlock; t++) {
+          Trip trip = new Trip();
+          trip.setId(new AgencyAndId(AGENCY_ID, service + "_" + blockId + "_" + t));
+          trip.setRoute(routes[route]);
+          trip.setServiceId(new AgencyAndId(AGENCY_ID, service));
+          trip.setBlockId(blockId);
+          dao.saveEntity(trip);
+
+          for (int i = 0; i < stopsPerTrip; i++) {
+            int stopIndex = route * stopsPerTrip
+                    + ((t % 2 == 0) ? i : stopsPerTrip - 1 - i);
+
+            StopTime st = new StopTime();
+            st.setTrip(trip);
+            st.setStop(stops[stopIndex]);
+            st.setStopSequence(i + 1);
+            st.setArrivalTime(time);
+            st.setDepartureTime(time);
+            dao.saveEntity(st);
+
+            time += (i < stopsPerTrip - 1) ? stopInterval : 0;
+          }
+
+          time += layoverMinutes * 60;
+        }
+      }
+    }
+
+    return dao;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.kurtraschke.septa.gtfsrealtime.model.Bus;
+import com.kurtraschke.septa.gtfsrealtime.model.Train;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates TransitViewAll and TrainView responses in the format the live
+ * API returns, for vehicles on the blocks of {@link SyntheticGtfs}.
+ *
+ * The responses are either random, for measuring parsing, or parsed polls of
+ * vehicles following their block's schedule, for measuring the provider: the
+ * latter report positions on their trips, so that consecutive polls are
+ * plausible and trip updates can be predicted from them.
+ *
+ * @author kurt
+ */
+public class SyntheticPayloads {
+
+  private static final String[] DIRECTIONS = {"NorthBound", "SouthBound",
+    "EastBound", "WestBound"};
+  private static final String[] DESTINATIONS = {"Frankford Transportation Center",
+    "Olney Transportation Center", "Center City", "69th Street Transportation Center",
+    "Wissahickon Transportation Center", null};
+  private static final String[] RAIL_DESTINATIONS = {"Thorndale", "Trenton",
+    "Doylestown", "Airport", "Chestnut Hill West", "Elwyn"};
+
+  private SyntheticPayloads() {
+
+  }
+
+  public static String transitViewAll(int buses, int blocks, long seed) {
+    Random r = new Random(seed);
+    int routeCount = Math.max(1, blocks / 12);
+    StringBuilder sb = new StringBuilder(buses * 260);
+
+    sb.append("{\"bus\":[");
+    for (int route = 0; route < routeCount; route++) {
+      if (route > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"").append(route + 1).append("\":[");
+
+      boolean first = true;
+      for (int i = route; i < buses; i += routeCount) {
+        int block = SyntheticGtfs.FIRST_BLOCK + (i % blocks);
+        String destination = DESTINATIONS[i % DESTINATIONS.length];
+
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+
+        sb.append("{\"lat\":\"").append(39.85 + 0.25 * r.nextDouble())
+                .append("\",\"lng\":\"").append(-75.35 + 0.35 * r.nextDouble())
+                .append("\",\"label\":\"").append(3000 + i)
+                .append("\",\"VehicleID\":\"").append(3000 + i)
+                .append("\",\"BlockID\":\"").append(block)
+                .append("\",\"Direction\":\"").append(DIRECTIONS[i % DIRECTIONS.length])
+                .append("\",\"destination\":")
+                .append(destination == null ? "null" : "\"" + destination + "\"")
+                .append(",\"Offset\":\"").append(r.nextInt(4))
+                .append("\",\"Offset_sec\":\"").append(r.nextInt(240))
+                .append("\"}");
+      }
+      sb.append("]}");
+    }
+    sb.append("]}");
+
+    return sb.toString();
+  }
+
+  /**
+   * @param store the bus schedule
+   * @param buses the number of buses; bus i runs the i-th block, modulo the
+   * number of blocks
+   * @param time the time of the poll, in seconds past midnight
+   * @return the buses of a TransitViewAll poll at that time; each bus
+   * reports from 0 to 2 minutes late, from where its schedule places it at
+   * the time of its report
+   */
+  public static List<Bus> busesAt(ScheduleStore store, int buses, int time) {
+    List<Bus> poll = new ArrayList<>(buses);
+    double[] position = new double[2];
+
+    for (int i = 0; i < buses; i++) {
+      int block = i % store.getBlockCount();
+      int offset = i % 3;
+      int trip = tripAt(store, block, time - offset * 60);
+
+      positionAt(store, trip, time - offset * 60, position);
+
+      poll.add(new Bus(position[0], position[1], Integer.toString(3000 + i),
+              Integer.toString(3000 + i), store.getBlockId(block),
+              direction(store, trip), store.getTripHeadsign(trip), offset));
+    }
+    return poll;
+  }
+
+  /**
+   * @param store the rail schedule
+   * @param trains the number of trains; train i runs the i-th block, modulo
+   * the number of blocks
+   * @param time the time of the poll, in seconds past midnight
+   * @return the trains of a TrainView poll at that time; each train runs
+   * from 0 to 7 minutes late, and reports from where its schedule placed it
+   * that long ago
+   */
+  public static List<Train> trainsAt(ScheduleStore store, int trains,
+          int time) {
+    List<Train> poll = new ArrayList<>(trains);
+    double[] position = new double[2];
+
+    for (int i = 0; i < trains; i++) {
+      int block = i % store.getBlockCount();
+      int late = i % 8;
+      int trip = tripAt(store, block, time - late * 60);
+      int nextStopTime = positionAt(store, trip, time - late * 60, position);
+
+      poll.add(new Train(position[0], position[1], store.getBlockId(block),
+              "LOCAL", store.getTripHeadsign(trip),
+              store.getStopName(store.getStopTimeStop(nextStopTime)), late,
+              "30th Street Station"));
+    }
+    return poll;
+  }
+
+  /**
+   * @return the trip of the block running at the given time, or else the
+   * last trip to start before it, or else the block's first trip
+   */
+  private static int tripAt(ScheduleStore store, int block, int time) {
+    int trip = store.getBlockTrip(store.getBlockTripsStart(block));
+
+    for (int p = store.getBlockTripsStart(block);
+            p < store.getBlockTripsEnd(block)
+            && store.getTripStartTime(store.getBlockTrip(p)) <= time; p++) {
+      trip = store.getBlockTrip(p);
+    }
+    return trip;
+  }
+
+  /**
+   * Place a vehicle on its trip at the given time, interpolating between the
+   * stops it is scheduled to be between; before the trip starts it is at the
+   * first stop, and after the trip ends it is at the last.
+   *
+   * @param position filled in with the latitude and longitude
+   * @return the index of the next stop time
+   */
+  private static int positionAt(ScheduleStore store, int trip, int time,
+          double[] position) {
+    int first = store.getTripStopTimesStart(trip);
+    int last = store.getTripStopTimesEnd(trip) - 1;
+    int next = first;
+
+    while (next < last && store.getStopTimeArrival(next) <= time) {
+      next++;
+    }
+
+    int from = store.getStopTimeStop(Math.max(first, next - 1));
+    int to = store.getStopTimeStop(next);
+    double f = 0;
+
+    if (next > first) {
+      int departure = store.getStopTimeDeparture(next - 1);
+      int arrival = store.getStopTimeArrival(next);
+
+      f = (arrival > departure) ? Math.max(0, Math.min(1,
+              (double) (time - departure) / (arrival - departure))) : 1;
+    }
+
+    position[0] = store.getStopLat(from)
+            + f * (store.getStopLat(to) - store.getStopLat(from));
+    position[1] = store.getStopLon(from)
+            + f * (store.getStopLon(to) - store.getStopLon(from));
+    return next;
+  }
+
+  /**
+   * @return the TransitView direction of the trip, from its first stop to its
+   * last
+   */
+  private static String direction(ScheduleStore store, int trip) {
+    int from = store.getStopTimeStop(store.getTripStopTimesStart(trip));
+    int to = store.getStopTimeStop(store.getTripStopTimesEnd(trip) - 1);
+    double dLat = store.getStopLat(to) - store.getStopLat(from);
+    double dLon = store.getStopLon(to) - store.getStopLon(from);
+
+    if (Math.abs(dLat) >= Math.abs(dLon)) {
+      return (dLat >= 0) ? "NorthBound" : "SouthBound";
+    }
+    return (dLon >= 0) ? "EastBound" : "WestBound";
+  }
+
+  public static String trainView(int trains, long seed) {
+    Random r = new Random(seed);
+    StringBuilder sb = new StringBuilder(trains * 320);
+
+    sb.append('[');
+    for (int i = 0; i < trains; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"lat\":\"").append(39.85 + 0.35 * r.nextDouble())
+              .append("\",\"lon\":\"").append(-75.45 + 0.55 * r.nextDouble())
+              .append("\",\"trainno\":\"").append(SyntheticGtfs.FIRST_BLOCK + i)
+              .append("\",\"service\":\"LOCAL\",\"dest\":\"")
+              .append(RAIL_DESTINATIONS[i % RAIL_DESTINATIONS.length])
+              .append("\",\"currentstop\":\"Suburban Station\",\"nextstop\":\"Stop ")
+              .append(i % 40 + 1)
+              .append("\",\"line\":\"Synthetic\",\"consist\":\"\",\"late\":")
+              .append(r.nextInt(8))
+              .append(",\"SOURCE\":\"30th Street Station\",\"TRACK\":\"\",\"TRACK_CHANGE\":\"\"}");
+    }
+    sb.append(']');
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.kurtraschke.septa.gtfsrealtime.model.Bus;
+import com.kurtraschke.septa.gtfsrealtime.model.Train;
+import com.kurtraschke.septa.gtfsrealtime.services.TrainViewService;
+import com.kurtraschke.septa.gtfsrealtime.services.TransitViewService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding of TransitViewAll and TrainView responses.
+ *
+ * By default the payloads are synthetic, sized like the live feeds; pass
+ * {@code -p transitViewFile=...} or {@code -p trainViewFile=...} to decode a
+ * captured response instead.
+ *
+ * @author kurt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ViewParsingBenchmark {
+
+  @Param("")
+  private String transitViewFile;
+
+  @Param("")
+  private String trainViewFile;
+
+  @Param("1400")
+  private int buses;
+
+  @Param("200")
+  private int trains;
+
+  private byte[] _transitView;
+  private byte[] _trainView;
+  private TransitViewService _transitViewService;
+  private TrainViewService _trainViewService;
+
+  @Setup
+  public void setup() throws IOException {
+    _transitView = transitViewFile.isEmpty()
+            ? SyntheticPayloads.transitViewAll(buses, buses, 1).getBytes(StandardCharsets.UTF_8)
+            : Files.readAllBytes(new File(transitViewFile).toPath());
+    _trainView = trainViewFile.isEmpty()
+            ? SyntheticPayloads.trainView(trains, 1).getBytes(StandardCharsets.UTF_8)
+            : Files.readAllBytes(new File(trainViewFile).toPath());
+
+    _transitViewService = new TransitViewService();
+    _trainViewService = new TrainViewService();
+  }
+
+  @Benchmark
+  public Collection<Bus> readBuses() throws IOException {
+    try (Reader reader = new InputStreamReader(
+            new ByteArrayInputStream(_transitView), StandardCharsets.UTF_8)) {
+      return _transitViewService.readBuses(reader);
+    }
+  }
+
+  @Benchmark
+  public Collection<Train> readTrains() throws IOException {
+    try (Reader reader = new InputStreamReader(
+            new ByteArrayInputStream(_trainView), StandardCharsets.UTF_8)) {
+      return _trainViewService.readTrains(reader);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers a fingerprint of the upstream state each entity was last
+ * published from, so that vehicles whose state has not changed can skip trip
+ * resolution and re-publication.
+ *
+ * @author kurt
+ */
+public class EntityFingerprintCache {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final ConcurrentHashMap<String, Fingerprint> _fingerprints = new ConcurrentHashMap<>();
+
+  /**
+   * @param entityId
+   * @param fingerprint
+   * @param nowMillis
+   * @param maxAgeMillis how long an unchanged entity may go without being
+   * published again
+   * @return true if the entity was published from the same fingerprint within
+   * the last maxAgeMillis
+   */
+  public boolean isUnchanged(String entityId, long fingerprint, long nowMillis,
+          long maxAgeMillis) {
+    Fingerprint f = _fingerprints.get(entityId);
+
+    return f != null && f.value == fingerprint
+            && nowMillis - f.publishedAt <= maxAgeMillis;
+  }
+
+  /**
+   * Record that an entity was published from the given fingerprint.
+   */
+  public void update(String entityId, long fingerprint, long nowMillis) {
+    Fingerprint f = _fingerprints.get(entityId);
+
+    if (f == null) {
+      f = _fingerprints.putIfAbsent(entityId,
+              new Fingerprint(fingerprint, nowMillis));
+
+      if (f == null) {
+        return;
+      }
+    }
+
+    f.value = fingerprint;
+    f.publishedAt = nowMillis;
+  }
+
+  public void remove(String entityId) {
+    _fingerprints.remove(entityId);
+  }
+
+  public static long start() {
+    return FNV_OFFSET_BASIS;
+  }
+
+  public static long mix(long hash, long value) {
+    long h = hash;
+
+    for (int i = 0; i < 8; i++) {
+      h ^= (value >>> (i * 8)) & 0xff;
+      h *= FNV_PRIME;
+    }
+    return h;
+  }
+
+  public static long mix(long hash, double value) {
+    return mix(hash, Double.doubleToLongBits(value));
+  }
+
+  public static long mix(long hash, String value) {
+    return mix(hash, (value != null) ? value.hashCode() : 0);
+  }
+
+  private static class Fingerprint {
+
+    volatile long value;
+    volatile long publishedAt;
+
+    Fingerprint(long value, long publishedAt) {
+      this.value = value;
+      this.publishedAt = publishedAt;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks when each published entity was last refreshed, and drains the ones
+ * that have outlived their expiry window.
+ *
+ * Safe for concurrent use by refresh and expiry tasks. Refreshing a known
+ * entity updates its timestamp in place without allocating.
+ *
+ * @author kurt
+ */
+public class EntityFreshnessTracker {
+
+  private final ConcurrentHashMap<String, Freshness> _entities = new ConcurrentHashMap<>();
+
+  /**
+   * Record that an entity was refreshed.
+   *
+   * @param entityId
+   * @param nowMillis the refresh time, in epoch milliseconds
+   * @param expireAfterMillis how long the entity stays live without another
+   * refresh
+   */
+  public void touch(String entityId, long nowMillis, long expireAfterMillis) {
+    Freshness f = _entities.get(entityId);
+
+    if (f == null) {
+      f = _entities.putIfAbsent(entityId,
+              new Freshness(nowMillis, expireAfterMillis));
+
+      if (f == null) {
+        return;
+      }
+    }
+
+    f.update(nowMillis, expireAfterMillis);
+  }
+
+  /**
+   * Record that an entity was refreshed, if it is still tracked.
+   *
+   * @param entityId
+   * @param nowMillis the refresh time, in epoch milliseconds
+   * @param expireAfterMillis how long the entity stays live without another
+   * refresh
+   * @return false if the entity is not tracked, having expired or never been
+   * published
+   */
+  public boolean refresh(String entityId, long nowMillis,
+          long expireAfterMillis) {
+    Freshness f = _entities.get(entityId);
+
+    if (f == null) {
+      return false;
+    }
+
+    f.update(nowMillis, expireAfterMillis);
+    return true;
+  }
+
+  /**
+   * Remove and return every entity whose expiry window has elapsed.
+   *
+   * @param nowMillis the current time, in epoch milliseconds
+   * @return the IDs of the expired entities
+   */
+  public List<String> drainExpired(long nowMillis) {
+    List<String> expired = new ArrayList<>();
+
+    for (Map.Entry<String, Freshness> e : _entities.entrySet()) {
+      Freshness f = e.getValue();
+
+      if (f.isExpired(nowMillis) && _entities.remove(e.getKey(), f)) {
+        if (f.isExpired(nowMillis)) {
+          expired.add(e.getKey());
+        } else {
+          /* Refreshed concurrently with removal; keep it. */
+          _entities.putIfAbsent(e.getKey(), f);
+        }
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * @param entityId
+   * @return when the entity expires unless refreshed again, in epoch
+   * milliseconds, or -1 if it is not tracked
+   */
+  public long getExpiry(String entityId) {
+    Freshness f = _entities.get(entityId);
+
+    return (f != null) ? f.getExpiry() : -1;
+  }
+
+  public int size() {
+    return _entities.size();
+  }
+
+  private static class Freshness {
+
+    private volatile long _lastUpdate;
+    private volatile long _expireAfter;
+
+    Freshness(long lastUpdate, long expireAfter) {
+      _lastUpdate = lastUpdate;
+      _expireAfter = expireAfter;
+    }
+
+    void update(long lastUpdate, long expireAfter) {
+      _expireAfter = expireAfter;
+      _lastUpdate = lastUpdate;
+    }
+
+    long getExpiry() {
+      return _lastUpdate + _expireAfter;
+    }
+
+    boolean isExpired(long now) {
+      return now - _lastUpdate > _expireAfter;
+    }
+  }
+}
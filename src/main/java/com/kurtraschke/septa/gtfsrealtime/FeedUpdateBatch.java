@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the updated and deleted entities of one refresh cycle, so that each
+ * sink receives a single incremental update when the batch is committed.
+ *
+ * @author kurt
+ */
+public class FeedUpdateBatch {
+
+  private final Map<GtfsRealtimeSink, GtfsRealtimeIncrementalUpdate> _updates = new LinkedHashMap<>();
+
+  public synchronized void addUpdatedEntity(GtfsRealtimeSink sink,
+          FeedEntity entity) {
+    updateForSink(sink).addUpdatedEntity(entity);
+  }
+
+  public synchronized void addDeletedEntity(GtfsRealtimeSink sink,
+          String entityId) {
+    updateForSink(sink).addDeletedEntity(entityId);
+  }
+
+  /**
+   * Hand each sink its accumulated update, then reset the batch.
+   */
+  public synchronized void commit() {
+    for (Map.Entry<GtfsRealtimeSink, GtfsRealtimeIncrementalUpdate> e : _updates.entrySet()) {
+      e.getKey().handleIncrementalUpdate(e.getValue());
+    }
+    _updates.clear();
+  }
+
+  private GtfsRealtimeIncrementalUpdate updateForSink(GtfsRealtimeSink sink) {
+    GtfsRealtimeIncrementalUpdate griu = _updates.get(sink);
+
+    if (griu == null) {
+      griu = new GtfsRealtimeIncrementalUpdate();
+      _updates.put(sink, griu);
+    }
+    return griu;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleSnapshotCompiler;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
+import com.kurtraschke.septa.gtfsrealtime.services.BlockToTripMapperService;
+import com.kurtraschke.septa.gtfsrealtime.services.StopGridIndex;
+
+import java.io.File;
+
+/**
+ * The schedule of one feed lane, together with the block mapper, trip cache
+ * and stop grid built from it.
+ *
+ * Instances are immutable, so that a reload can build a new one in the
+ * background and publish it with a single reference swap; readers take one
+ * reference and use it for the whole of their work.
+ *
+ * @author kurt
+ */
+public class LaneSchedule {
+
+  private final ScheduleStore _store;
+  private final BlockToTripMapperService _blockMapper;
+  private final TripDescriptorCache _tripCache;
+  private final StopGridIndex _stopGrid;
+  private final long _sourceLastModified;
+  private final long _sourceLength;
+
+  /**
+   * @param store
+   * @param agencyId
+   * @param tripCacheSize
+   * @param layoverWindow how long before a trip is scheduled to start, or
+   * after it is scheduled to end, a vehicle on its block may still be
+   * running it, in seconds
+   * @param serviceAreaRadius how far from the nearest stop, in meters, a
+   * vehicle may be and still lie within the service area
+   * @param sourceLastModified modification time of the GTFS file, as of
+   * before it was read, per {@link ScheduleSnapshotCompiler#lastModified}
+   * @param sourceLength length of the GTFS file, as of before it was read, per
+   * {@link ScheduleSnapshotCompiler#length}
+   */
+  public LaneSchedule(ScheduleStore store, String agencyId,
+          long tripCacheSize, int layoverWindow, double serviceAreaRadius,
+          long sourceLastModified, long sourceLength) {
+    _store = store;
+    _blockMapper = new BlockToTripMapperService(store);
+    _tripCache = new TripDescriptorCache(_blockMapper, store, agencyId,
+            layoverWindow, tripCacheSize);
+    _stopGrid = StopGridIndex.build(store, serviceAreaRadius);
+    _sourceLastModified = sourceLastModified;
+    _sourceLength = sourceLength;
+  }
+
+  public ScheduleStore getStore() {
+    return _store;
+  }
+
+  public BlockToTripMapperService getBlockMapper() {
+    return _blockMapper;
+  }
+
+  public TripDescriptorCache getTripCache() {
+    return _tripCache;
+  }
+
+  public StopGridIndex getStopGrid() {
+    return _stopGrid;
+  }
+
+  /**
+   * @return true if the GTFS file appears to have changed since this schedule
+   * was read from it
+   */
+  public boolean isStale(File gtfsPath) {
+    return ScheduleSnapshotCompiler.lastModified(gtfsPath)
+            != _sourceLastModified
+            || ScheduleSnapshotCompiler.length(gtfsPath) != _sourceLength;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * One stage of the refresh pipeline: a fixed set of threads taking tasks from
+ * a bounded hand-off queue.
+ *
+ * Submitting to a full queue blocks until a task is taken, so a stage that
+ * falls behind slows the stage feeding it rather than letting work pile up.
+ * Each stage records a timer of its tasks under {@code pipeline.<name>}, and a
+ * gauge of its queue depth under {@code pipeline.<name>.queued}.
+ *
+ * @author kurt
+ */
+public class PipelineStage {
+
+  private static final Logger _log = LoggerFactory.getLogger(PipelineStage.class);
+
+  private final String _name;
+  private final BlockingQueue<Runnable> _queue;
+  private final Thread[] _threads;
+  private final Timer _timer;
+
+  /**
+   * @param name
+   * @param threads the number of tasks the stage runs at once
+   * @param queueSize the number of tasks that may wait to be run
+   * @param threadFactory
+   * @param registry
+   */
+  public PipelineStage(String name, int threads, int queueSize,
+          ThreadFactory threadFactory, MetricRegistry registry) {
+    _name = name;
+    _queue = new ArrayBlockingQueue<>(queueSize);
+    _threads = new Thread[threads];
+    _timer = registry.timer(MetricRegistry.name("pipeline", name));
+
+    registry.register(MetricRegistry.name("pipeline", name, "queued"),
+            new Gauge<Integer>() {
+              @Override
+              public Integer getValue() {
+                return _queue.size();
+              }
+            });
+
+    for (int i = 0; i < threads; i++) {
+      _threads[i] = threadFactory.newThread(new Worker());
+    }
+  }
+
+  public void start() {
+    for (Thread t : _threads) {
+      t.start();
+    }
+  }
+
+  /**
+   * Interrupt the stage's threads, abandoning any queued tasks.
+   */
+  public void stop() {
+    for (Thread t : _threads) {
+      t.interrupt();
+    }
+    _queue.clear();
+  }
+
+  /**
+   * Queue a task, waiting for room if the queue is full.
+   *
+   * @param task
+   * @throws InterruptedException
+   */
+  public void submit(Runnable task) throws InterruptedException {
+    _queue.put(task);
+  }
+
+  private class Worker implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Runnable task = _queue.take();
+          Timer.Context timer = _timer.time();
+
+          try {
+            task.run();
+          } catch (RuntimeException ex) {
+            _log.warn("Exception in " + _name + " stage", ex);
+          } finally {
+            timer.stop();
+          }
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
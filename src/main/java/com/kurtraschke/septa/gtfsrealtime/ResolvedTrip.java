@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+
+/**
+ * A trip resolved for a vehicle: its GTFS-realtime descriptor, along with the
+ * time origin of the service day it runs on, against which its stop times
+ * are scheduled.
+ *
+ * @author kurt
+ */
+public class ResolvedTrip {
+
+  private final TripDescriptor _descriptor;
+  private final long _serviceDayOrigin;
+  private final long _startTime;
+  private final long _endTime;
+
+  /**
+   * @param descriptor
+   * @param serviceDayOrigin in epoch seconds
+   * @param startTime the trip's scheduled start, in epoch seconds
+   * @param endTime the trip's scheduled end, in epoch seconds
+   */
+  public ResolvedTrip(TripDescriptor descriptor, long serviceDayOrigin,
+          long startTime, long endTime) {
+    _descriptor = descriptor;
+    _serviceDayOrigin = serviceDayOrigin;
+    _startTime = startTime;
+    _endTime = endTime;
+  }
+
+  public TripDescriptor getDescriptor() {
+    return _descriptor;
+  }
+
+  /**
+   * @return the service day's time origin, in epoch seconds
+   */
+  public long getServiceDayOrigin() {
+    return _serviceDayOrigin;
+  }
+
+  /**
+   * @return the trip's scheduled start, in epoch seconds
+   */
+  public long getStartTime() {
+    return _startTime;
+  }
+
+  /**
+   * @return the trip's scheduled end, in epoch seconds
+   */
+  public long getEndTime() {
+    return _endTime;
+  }
+}
@@ -18,11 +18,9 @@ package com.kurtraschke.septa.gtfsrealtime;
 import org.onebusaway.cli.CommandLineInterfaceLibrary;
 import org.onebusaway.cli.Daemonizer;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeExporter;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFileWriter;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet;
 import org.onebusaway.guice.jsr250.LifecycleService;
 
 import com.google.inject.ConfigurationException;
@@ -34,6 +32,9 @@ import com.google.inject.Key;
 import com.google.inject.Module;
 import com.google.inject.ProvisionException;
 import com.google.inject.name.Names;
+import com.kurtraschke.septa.gtfsrealtime.feed.FeedFilePublisher;
+import com.kurtraschke.septa.gtfsrealtime.feed.FeedSnapshotServlet;
+import com.kurtraschke.septa.gtfsrealtime.metrics.MetricsServlet;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -63,6 +64,7 @@ public class SeptaRealtimeMain {
   private URL _vehiclePositionsUrl;
   private File _alertsPath;
   private URL _alertsUrl;
+  private URL _metricsUrl;
   private Injector _injector;
   private SeptaRealtimeProvider _provider;
   private LifecycleService _lifecycleService;
@@ -142,47 +144,52 @@ public class SeptaRealtimeMain {
 
     _tripUpdatesUrl = getConfigurationValue(URL.class, "tripUpdates.url");
     if (_tripUpdatesUrl != null) {
-      GtfsRealtimeServlet servlet = _injector.getInstance(GtfsRealtimeServlet.class);
+      FeedSnapshotServlet servlet = _injector.getInstance(FeedSnapshotServlet.class);
       servlet.setUrl(_tripUpdatesUrl);
       servlet.setSource(_tripUpdatesExporter);
-
     }
 
     _tripUpdatesPath = getConfigurationValue(File.class, "tripUpdates.path");
     if (_tripUpdatesPath != null) {
-      GtfsRealtimeFileWriter writer = _injector.getInstance(GtfsRealtimeFileWriter.class);
+      FeedFilePublisher writer = _injector.getInstance(FeedFilePublisher.class);
       writer.setPath(_tripUpdatesPath);
       writer.setSource(_tripUpdatesExporter);
     }
 
     _vehiclePositionsUrl = getConfigurationValue(URL.class, "vehiclePositions.url");
     if (_vehiclePositionsUrl != null) {
-      GtfsRealtimeServlet servlet = _injector.getInstance(GtfsRealtimeServlet.class);
+      FeedSnapshotServlet servlet = _injector.getInstance(FeedSnapshotServlet.class);
       servlet.setUrl(_vehiclePositionsUrl);
       servlet.setSource(_vehiclePositionsExporter);
     }
 
     _vehiclePositionsPath = getConfigurationValue(File.class, "vehiclePositions.path");
     if (_vehiclePositionsPath != null) {
-      GtfsRealtimeFileWriter writer = _injector.getInstance(GtfsRealtimeFileWriter.class);
+      FeedFilePublisher writer = _injector.getInstance(FeedFilePublisher.class);
       writer.setPath(_vehiclePositionsPath);
       writer.setSource(_vehiclePositionsExporter);
     }
 
     _alertsUrl = getConfigurationValue(URL.class, "alerts.url");
     if (_alertsUrl != null) {
-      GtfsRealtimeServlet servlet = _injector.getInstance(GtfsRealtimeServlet.class);
+      FeedSnapshotServlet servlet = _injector.getInstance(FeedSnapshotServlet.class);
       servlet.setUrl(_alertsUrl);
       servlet.setSource(_alertsExporter);
     }
 
     _alertsPath = getConfigurationValue(File.class, "alerts.path");
     if (_alertsPath != null) {
-      GtfsRealtimeFileWriter writer = _injector.getInstance(GtfsRealtimeFileWriter.class);
+      FeedFilePublisher writer = _injector.getInstance(FeedFilePublisher.class);
       writer.setPath(_alertsPath);
       writer.setSource(_alertsExporter);
     }
 
+    _metricsUrl = getConfigurationValue(URL.class, "metrics.url");
+    if (_metricsUrl != null) {
+      MetricsServlet servlet = _injector.getInstance(MetricsServlet.class);
+      servlet.setUrl(_metricsUrl);
+    }
+
     _lifecycleService.start();
   }
 
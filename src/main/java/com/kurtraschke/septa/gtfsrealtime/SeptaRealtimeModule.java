@@ -20,9 +20,13 @@ import org.onebusaway.guice.jsr250.JSR250Module;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Module;
+import com.kurtraschke.septa.gtfsrealtime.services.UpstreamSource;
+import com.kurtraschke.septa.gtfsrealtime.services.UpstreamSourceProvider;
 
 import java.util.Set;
 
+import javax.inject.Singleton;
+
 public class SeptaRealtimeModule extends AbstractModule {
 
   public static void addModuleAndDependencies(Set<Module> modules) {
@@ -33,6 +37,8 @@ public class SeptaRealtimeModule extends AbstractModule {
 
   @Override
   protected void configure() {
+    bind(UpstreamSource.class).toProvider(UpstreamSourceProvider.class)
+            .in(Singleton.class);
   }
 
   /**
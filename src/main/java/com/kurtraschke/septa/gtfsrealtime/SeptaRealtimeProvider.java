@@ -15,70 +15,101 @@
  */
 package com.kurtraschke.septa.gtfsrealtime;
 
-import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
-import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.StopTime;
-import org.onebusaway.gtfs.serialization.GtfsReader;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.Alerts;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.TripUpdates;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeGuiceBindingTypes.VehiclePositions;
-import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalUpdate;
 import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSink;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.Position;
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
-import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
 import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
-import com.kurtraschke.septa.gtfsrealtime.model.ActivatedTrip;
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics;
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics.LaneMetrics;
 import com.kurtraschke.septa.gtfsrealtime.model.Bus;
 import com.kurtraschke.septa.gtfsrealtime.model.Train;
-import com.kurtraschke.septa.gtfsrealtime.services.BlockToTripMapperService;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleSnapshotCompiler;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
 import com.kurtraschke.septa.gtfsrealtime.services.TrainViewService;
 import com.kurtraschke.septa.gtfsrealtime.services.TransitViewService;
+import com.kurtraschke.septa.gtfsrealtime.services.UpstreamSource;
+import com.kurtraschke.septa.gtfsrealtime.services.VehicleHandler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.inject.Inject;
 import javax.inject.Named;
 
 public class SeptaRealtimeProvider {
 
   private static final Logger _log = LoggerFactory.getLogger(SeptaRealtimeProvider.class);
-  private ScheduledExecutorService _executor;
+  private ScheduledExecutorService _busExecutor;
+  private ScheduledExecutorService _railExecutor;
+  private ScheduledExecutorService _expireExecutor;
+  private ScheduledExecutorService _reloadExecutor;
+  private ScheduledExecutorService _checkpointExecutor;
+  private PipelineStage _decodeStage;
+  private PipelineStage _resolveStage;
+  private PipelineStage _publishStage;
   private GtfsRealtimeSink _vehiclePositionsSink;
   private GtfsRealtimeSink _tripUpdatesSink;
   private GtfsRealtimeSink _alertsSink;
   private TransitViewService _transitViewService;
   private TrainViewService _trainViewService;
-
-  private GtfsRelationalDao _busGtfsDao;
-  private GtfsRelationalDao _railGtfsDao;
-
-  private BlockToTripMapperService _busBlockMapper;
-  private BlockToTripMapperService _railBlockMapper;
-
-  private final HashMap<String, Calendar> _entityLastUpdate = new HashMap<>();
+  private UpstreamSource _upstreamSource;
+  private SeptaRealtimeMetrics _metrics;
+
+  private volatile LaneSchedule _busSchedule;
+  private volatile LaneSchedule _railSchedule;
+
+  private final EntityFreshnessTracker _entityFreshness = new EntityFreshnessTracker();
+  private final EntityFingerprintCache _entityFingerprints = new EntityFingerprintCache();
+  private final VehicleStateStore _vehicleStates = new VehicleStateStore(2048);
+  private VehiclePositionFilter _busPositionFilter;
+  private VehiclePositionFilter _railPositionFilter;
+  private StopTimePredictor _railPredictor;
+  private StopTimePredictor _busPredictor;
+
+  /**
+   * Vehicles with a trip update in the feed, which must be deleted when a
+   * vehicle can no longer be placed on its trip.
+   */
+  private final Set<String> _tripUpdateEntities = Collections.newSetFromMap(
+          new ConcurrentHashMap<String, Boolean>());
 
   private final String AGENCY_ID = "SEPTA";
-  private final long EXPIRE_DATA_AFTER = 5 * 60 * 1000;
+
+  /**
+   * The number of vehicles handed from the decode stage to the resolve stage
+   * at a time, and resolved together in one bulk trip lookup.
+   */
+  private static final int RESOLVE_CHUNK_SIZE = 64;
 
   @Inject
   @Named("refreshInterval.bus")
@@ -96,6 +127,98 @@ public class SeptaRealtimeProvider {
   @Named("gtfsPath.rail")
   private File _railGtfsPath;
 
+  @Inject(optional = true)
+  @Named("workerThreads")
+  private int _workerThreads = Runtime.getRuntime().availableProcessors();
+
+  @Inject(optional = true)
+  @Named("workerQueueSize")
+  private int _workerQueueSize = 64;
+
+  @Inject(optional = true)
+  @Named("pipeline.decodeThreads")
+  private int _decodeThreads = 2;
+
+  @Inject(optional = true)
+  @Named("pipeline.publishThreads")
+  private int _publishThreads = 1;
+
+  @Inject(optional = true)
+  @Named("pipeline.queueSize")
+  private int _pipelineQueueSize = 4;
+
+  @Inject(optional = true)
+  @Named("expireAfter.bus")
+  private int _busExpireAfter = 5 * 60;
+
+  @Inject(optional = true)
+  @Named("expireAfter.rail")
+  private int _railExpireAfter = 5 * 60;
+
+  @Inject(optional = true)
+  @Named("republishInterval")
+  private int _republishInterval = 2 * 60;
+
+  @Inject(optional = true)
+  @Named("tripCache.maxSize")
+  private int _tripCacheSize = 10000;
+
+  @Inject(optional = true)
+  @Named("blockResolution.layoverWindow")
+  private int _layoverWindow = 10 * 60;
+
+  @Inject(optional = true)
+  @Named("gtfsReloadInterval")
+  private int _gtfsReloadInterval = 10 * 60;
+
+  @Inject(optional = true)
+  @Named("positionFilter.serviceAreaRadius.bus")
+  private int _busServiceAreaRadius = 1500;
+
+  @Inject(optional = true)
+  @Named("positionFilter.serviceAreaRadius.rail")
+  private int _railServiceAreaRadius = 4000;
+
+  @Inject(optional = true)
+  @Named("positionFilter.maxSpeed.bus")
+  private int _busMaxSpeed = 35;
+
+  @Inject(optional = true)
+  @Named("positionFilter.maxSpeed.rail")
+  private int _railMaxSpeed = 60;
+
+  @Inject(optional = true)
+  @Named("positionFilter.deriveMotion")
+  private boolean _deriveMotion = true;
+
+  @Inject(optional = true)
+  @Named("prediction.minDwell.bus")
+  private int _busMinDwell = 0;
+
+  @Inject(optional = true)
+  @Named("prediction.delayHalfLife.bus")
+  private int _busDelayHalfLife = 0;
+
+  @Inject(optional = true)
+  @Named("prediction.maxDistanceFromTrip.bus")
+  private int _busMaxDistanceFromTrip = 400;
+
+  @Inject(optional = true)
+  @Named("prediction.minDwell.rail")
+  private int _railMinDwell = 30;
+
+  @Inject(optional = true)
+  @Named("prediction.delayHalfLife.rail")
+  private int _railDelayHalfLife = 0;
+
+  @Inject(optional = true)
+  @Named("checkpoint.path")
+  private File _checkpointPath = null;
+
+  @Inject(optional = true)
+  @Named("checkpoint.interval")
+  private int _checkpointInterval = 60;
+
   @Inject
   public void setVehiclePositionsSink(@VehiclePositions GtfsRealtimeSink sink) {
     _vehiclePositionsSink = sink;
@@ -111,6 +234,11 @@ public class SeptaRealtimeProvider {
     _alertsSink = sink;
   }
 
+  @Inject
+  public void setMetrics(SeptaRealtimeMetrics metrics) {
+    _metrics = metrics;
+  }
+
   @Inject
   public void setTransitViewService(TransitViewService transitViewService) {
     _transitViewService = transitViewService;
@@ -121,6 +249,15 @@ public class SeptaRealtimeProvider {
     _trainViewService = trainViewService;
   }
 
+  /**
+   * The upstream source is the provider's clock, so that a replayed
+   * recording is processed as of the time it was recorded.
+   */
+  @Inject
+  public void setUpstreamSource(UpstreamSource upstreamSource) {
+    _upstreamSource = upstreamSource;
+  }
+
   public SeptaRealtimeProvider() {
 
   }
@@ -130,21 +267,57 @@ public class SeptaRealtimeProvider {
     try {
       _log.info("Starting GTFS-realtime service");
 
-      _busGtfsDao = loadGtfs(_busGtfsPath);
-      _railGtfsDao = loadGtfs(_railGtfsPath);
+      restoreCheckpoint();
 
-      _busBlockMapper = new BlockToTripMapperService(_busGtfsDao);
-      _railBlockMapper = new BlockToTripMapperService(_railGtfsDao);
+      _busSchedule = loadSchedule(_busGtfsPath, _busServiceAreaRadius);
+      _railSchedule = loadSchedule(_railGtfsPath, _railServiceAreaRadius);
 
-      _executor = Executors.newSingleThreadScheduledExecutor();
-      _executor.scheduleWithFixedDelay(new BusRefreshTask(), 0,
+      initializePositionFilters();
+      initializePredictors();
+
+      registerTripCacheGauges(SeptaRealtimeMetrics.BUS);
+      registerTripCacheGauges(SeptaRealtimeMetrics.RAIL);
+
+      MetricRegistry registry = _metrics.getRegistry();
+
+      _decodeStage = new PipelineStage("decode", _decodeThreads,
+              _pipelineQueueSize, threadFactory("decode-%d"), registry);
+      _resolveStage = new PipelineStage("resolve", _workerThreads,
+              _workerQueueSize, threadFactory("worker-%d"), registry);
+      _publishStage = new PipelineStage("publish", _publishThreads,
+              _pipelineQueueSize, threadFactory("publish-%d"), registry);
+      _decodeStage.start();
+      _resolveStage.start();
+      _publishStage.start();
+
+      _busExecutor = Executors.newSingleThreadScheduledExecutor(
+              threadFactory("bus-refresh"));
+      _busExecutor.scheduleWithFixedDelay(new BusRefreshTask(), 0,
               _busRefreshInterval, TimeUnit.SECONDS);
 
-      _executor.scheduleWithFixedDelay(new TrainRefreshTask(), 0,
+      _railExecutor = Executors.newSingleThreadScheduledExecutor(
+              threadFactory("rail-refresh"));
+      _railExecutor.scheduleWithFixedDelay(new TrainRefreshTask(), 0,
               _railRefreshInterval, TimeUnit.SECONDS);
 
-      _executor.scheduleWithFixedDelay(new ExpireDataTask(), 0, 1,
+      _expireExecutor = Executors.newSingleThreadScheduledExecutor(
+              threadFactory("expire-data"));
+      _expireExecutor.scheduleWithFixedDelay(new ExpireDataTask(), 0, 1,
               TimeUnit.MINUTES);
+
+      _reloadExecutor = Executors.newSingleThreadScheduledExecutor(
+              threadFactory("gtfs-reload"));
+      if (_gtfsReloadInterval > 0) {
+        _reloadExecutor.scheduleWithFixedDelay(new ReloadScheduleTask(),
+                _gtfsReloadInterval, _gtfsReloadInterval, TimeUnit.SECONDS);
+      }
+
+      _checkpointExecutor = Executors.newSingleThreadScheduledExecutor(
+              threadFactory("state-checkpoint"));
+      if (_checkpointPath != null && _checkpointInterval > 0) {
+        _checkpointExecutor.scheduleWithFixedDelay(new CheckpointTask(),
+                _checkpointInterval, _checkpointInterval, TimeUnit.SECONDS);
+      }
     } catch (IOException ex) {
       _log.error("Exception while starting GTFS-realtime service", ex);
       throw new IllegalStateException(ex);
@@ -154,48 +327,305 @@ public class SeptaRealtimeProvider {
   @PreDestroy
   public void stop() {
     _log.info("Stopping GTFS-realtime service");
-    _executor.shutdownNow();
+
+    /* start() may have failed part-way, leaving some of these unset. */
+    for (ExecutorService executor : Arrays.asList(_busExecutor, _railExecutor,
+            _expireExecutor, _reloadExecutor)) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+
+    for (PipelineStage stage : Arrays.asList(_decodeStage, _resolveStage,
+            _publishStage)) {
+      if (stage != null) {
+        stage.stop();
+      }
+    }
+
+    if (_checkpointExecutor == null) {
+      /* The service never started; the last checkpoint is left as it was. */
+      return;
+    }
+
+    _checkpointExecutor.shutdown();
+    try {
+      _checkpointExecutor.awaitTermination(_checkpointInterval,
+              TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    writeCheckpoint();
+  }
+
+  /**
+   * Republish the entities and restore the vehicle states saved by the last
+   * checkpoint, if there is one, dropping those that have since expired.
+   *
+   * Restored trip assignments are not bound to any schedule, so each vehicle
+   * is resolved afresh on its first report, with its restored trip preferred
+   * among the candidates.
+   */
+  private void restoreCheckpoint() {
+    if (_checkpointPath == null || !_checkpointPath.exists()) {
+      return;
+    }
+
+    long now = _upstreamSource.currentTimeMillis();
+    List<StateCheckpoint.Vehicle> vehicles;
+
+    try {
+      vehicles = StateCheckpoint.read(_checkpointPath, now);
+    } catch (IOException ex) {
+      _log.warn("Exception while reading state checkpoint from "
+              + _checkpointPath + "; starting empty", ex);
+      return;
+    }
+
+    FeedUpdateBatch batch = new FeedUpdateBatch();
+
+    for (StateCheckpoint.Vehicle v : vehicles) {
+      VehicleState state = v.getState();
+      String entityId = state.getVehicleId();
+
+      if (state.getTripUpdate() != null) {
+        batch.addUpdatedEntity(_tripUpdatesSink, state.getTripUpdate());
+        _tripUpdateEntities.add(entityId);
+      }
+
+      if (state.getVehiclePosition() != null) {
+        batch.addUpdatedEntity(_vehiclePositionsSink,
+                state.getVehiclePosition());
+      }
+
+      _vehicleStates.put(state);
+      _entityFreshness.touch(entityId, now, v.getExpiresAt() - now);
+    }
+
+    batch.commit();
+    _log.info("Restored {} vehicles from state checkpoint {}",
+            vehicles.size(), _checkpointPath);
+  }
+
+  private void writeCheckpoint() {
+    if (_checkpointPath == null) {
+      return;
+    }
+
+    List<StateCheckpoint.Vehicle> vehicles = new ArrayList<>();
+
+    for (VehicleState state : _vehicleStates.values()) {
+      long expiresAt = _entityFreshness.getExpiry(state.getVehicleId());
+
+      if (expiresAt >= 0 && (state.getTripUpdate() != null
+              || state.getVehiclePosition() != null)) {
+        vehicles.add(new StateCheckpoint.Vehicle(state, expiresAt));
+      }
+    }
+
+    try {
+      StateCheckpoint.write(_checkpointPath, vehicles);
+    } catch (IOException ex) {
+      _log.warn("Exception while writing state checkpoint to "
+              + _checkpointPath, ex);
+    }
+  }
+
+  /**
+   * Build the block mappers and trip caches for the given schedules.
+   *
+   * Package-private so that benchmarks can drive the provider with synthetic
+   * schedules.
+   */
+  void initializeSchedules(ScheduleStore busSchedule,
+          ScheduleStore railSchedule) {
+    _busSchedule = new LaneSchedule(busSchedule, AGENCY_ID, _tripCacheSize,
+            _layoverWindow, _busServiceAreaRadius, 0L, 0L);
+    _railSchedule = new LaneSchedule(railSchedule, AGENCY_ID, _tripCacheSize,
+            _layoverWindow, _railServiceAreaRadius, 0L, 0L);
+    initializePositionFilters();
+    initializePredictors();
+  }
+
+  private void initializePositionFilters() {
+    _busPositionFilter = new VehiclePositionFilter(_busMaxSpeed, _deriveMotion);
+    _railPositionFilter = new VehiclePositionFilter(_railMaxSpeed,
+            _deriveMotion);
   }
 
-  private static GtfsRelationalDao loadGtfs(File gtfsPath) throws IOException {
-    GtfsReader reader = new GtfsReader();
-    GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
-    reader.setInputLocation(gtfsPath);
-    reader.setEntityStore(dao);
-    reader.run();
-    return dao;
+  private void initializePredictors() {
+    _busPredictor = new StopTimePredictor(_busMinDwell, _busDelayHalfLife);
+    _railPredictor = new StopTimePredictor(_railMinDwell, _railDelayHalfLife);
   }
 
-  private TripDescriptor tripDescriptorForBlock(String blockId,
-          Calendar blockActiveTime, BlockToTripMapperService blockMapper) {
-    ActivatedTrip at = blockMapper.mapBlockToTrip(new AgencyAndId(AGENCY_ID,
-            blockId), blockActiveTime, blockMapper.getAutoMaxLookBack());
+  private LaneSchedule loadSchedule(File gtfsPath, int serviceAreaRadius)
+          throws IOException {
+    long lastModified = ScheduleSnapshotCompiler.lastModified(gtfsPath);
+    long length = ScheduleSnapshotCompiler.length(gtfsPath);
 
-    TripDescriptor.Builder tdb = TripDescriptor.newBuilder();
+    return new LaneSchedule(ScheduleSnapshotCompiler.loadOrCompile(gtfsPath),
+            AGENCY_ID, _tripCacheSize, _layoverWindow, serviceAreaRadius,
+            lastModified, length);
+  }
 
-    tdb.setTripId(at.getTrip().getId().getId());
-    tdb.setRouteId(at.getTrip().getRoute().getId().getId());
+  /**
+   * Build a new schedule for a lane if its GTFS file has changed.
+   *
+   * @return the new schedule, or the current one if the file is unchanged or
+   * could not be loaded
+   */
+  private LaneSchedule reloadIfStale(LaneSchedule current, File gtfsPath,
+          int serviceAreaRadius, LaneMetrics metrics) {
+    if (!current.isStale(gtfsPath)) {
+      return current;
+    }
 
-    tdb.setStartDate(String.format("%04d%02d%02d",
-            at.getServiceDate().getYear(), at.getServiceDate().getMonth(),
-            at.getServiceDate().getDay()));
+    Runtime runtime = Runtime.getRuntime();
+    long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+    Timer.Context timer = metrics.getScheduleReload().time();
 
-    return tdb.build();
+    try {
+      LaneSchedule reloaded = loadSchedule(gtfsPath, serviceAreaRadius);
+      long elapsed = timer.stop();
+      long heapDelta = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+      metrics.getScheduleReloadHeapDelta().update(heapDelta);
+      _log.info("Reloaded schedule from {} in {} ms, heap delta {} KiB",
+              gtfsPath, TimeUnit.NANOSECONDS.toMillis(elapsed),
+              heapDelta / 1024);
+      return reloaded;
+    } catch (Exception ex) {
+      metrics.getScheduleReloadFailures().inc();
+      _log.error("Exception while reloading schedule from " + gtfsPath
+              + "; keeping the current schedule", ex);
+      return current;
+    }
+  }
 
+  private TripDescriptorCache tripCacheForLane(String lane) {
+    return SeptaRealtimeMetrics.BUS.equals(lane)
+            ? _busSchedule.getTripCache() : _railSchedule.getTripCache();
   }
 
-  private StopTime firstStopTimeForTripId(String tripId, GtfsRelationalDao dao) {
+  private void registerTripCacheGauges(final String lane) {
+    MetricRegistry registry = _metrics.getRegistry();
+
+    registry.register(MetricRegistry.name(lane, "tripCache", "hits"),
+            new Gauge<Long>() {
+              @Override
+              public Long getValue() {
+                return tripCacheForLane(lane).stats().hitCount();
+              }
+            });
+
+    registry.register(MetricRegistry.name(lane, "tripCache", "misses"),
+            new Gauge<Long>() {
+              @Override
+              public Long getValue() {
+                return tripCacheForLane(lane).stats().missCount();
+              }
+            });
+  }
+
+  private static ThreadFactory threadFactory(String nameFormat) {
+    return new ThreadFactoryBuilder().setNameFormat(nameFormat)
+            .setDaemon(true).build();
+  }
+
+  /**
+   * Resolve the trip a vehicle is running. The vehicle is assumed to still be
+   * running the trip it was last assigned, if that is still valid (see
+   * {@link VehicleState#getContinuingTrip}); otherwise the candidate trips of
+   * its block are ranked with {@link TripSelector}.
+   *
+   * @param vehicle
+   * @param blockId
+   * @param blockActiveTime in epoch seconds
+   * @param direction the direction the vehicle reports, or null
+   * @param destination the destination the vehicle reports, or null
+   * @return the trip, or null if the block has no candidate trips
+   */
+  private ResolvedTrip resolveTrip(TripDescriptorCache tripCache,
+          VehicleState vehicle, String blockId, long blockActiveTime,
+          String direction, String destination, LaneMetrics metrics) {
+    long start = System.nanoTime();
+    ResolvedTrip trip = vehicle.getContinuingTrip(tripCache, blockId,
+            destination, blockActiveTime);
+
+    if (trip != null) {
+      metrics.getBlockMappingContinued().inc();
+    } else {
+      TripCandidate[] candidates = tripCache.getCandidates(blockId,
+              blockActiveTime);
+      int best = TripSelector.select(candidates, vehicle.getAssignedTrip(),
+              direction, destination);
+
+      if (best < 0) {
+        metrics.getBlockMapping().update(System.nanoTime() - start,
+                TimeUnit.NANOSECONDS);
+        metrics.getBlockMappingFailures().inc();
+        return null;
+      }
+
+      if (candidates.length > 1) {
+        metrics.getBlockMappingAmbiguous().inc();
+      }
+
+      if (candidates[best].getLayover() != 0) {
+        metrics.getBlockMappingLayover().inc();
+      }
 
-    return dao.getStopTimesForTrip(
-            dao.getTripForId(new AgencyAndId(AGENCY_ID, tripId))).get(0);
+      trip = candidates[best].getTrip();
+      vehicle.assignTrip(tripCache, blockId, destination, trip);
+    }
+
+    metrics.getBlockMapping().update(System.nanoTime() - start,
+            TimeUnit.NANOSECONDS);
+    metrics.getBlockMappingResolved().mark();
+    return trip;
   }
 
-  private Position positionForBus(Bus bus) {
+  /**
+   * @return true unless the vehicle is known to still be running the trip it
+   * was last assigned
+   */
+  private boolean needsBlockSearch(String entityId,
+          TripDescriptorCache tripCache, String blockId, String destination,
+          long blockActiveTime) {
+    VehicleState vehicle = _vehicleStates.get(entityId);
+
+    return vehicle == null || vehicle.getContinuingTrip(tripCache, blockId,
+            destination, blockActiveTime) == null;
+  }
+
+  /**
+   * @return the position, or null if it was rejected
+   */
+  private Position filterPosition(VehiclePositionFilter filter,
+          VehicleState vehicle, double lat, double lon, long time,
+          LaneSchedule schedule, LaneMetrics metrics) {
     Position.Builder pb = Position.newBuilder();
 
-    pb.setLatitude((float) bus.getLatitude());
-    pb.setLongitude((float) bus.getLongitude());
-    return pb.build();
+    switch (filter.filter(vehicle, lat, lon, time, schedule.getStopGrid(),
+            pb)) {
+      case ACCEPTED:
+        return pb.build();
+      case NO_FIX:
+        metrics.getPositionsMissing().inc();
+        return null;
+      case OUT_OF_SERVICE_AREA:
+        metrics.getPositionsOutOfServiceArea().inc();
+        return null;
+      default:
+        metrics.getPositionsImplausible().inc();
+        return null;
+    }
+  }
+
+  private Position positionForBus(Bus bus, VehicleState vehicle, long time,
+          LaneSchedule schedule) {
+    return filterPosition(_busPositionFilter, vehicle, bus.getLatitude(),
+            bus.getLongitude(), time, schedule, _metrics.getBusMetrics());
   }
 
   private VehicleDescriptor vehicleDescriptorForBus(Bus bus) {
@@ -207,21 +637,54 @@ public class SeptaRealtimeProvider {
     return vdb.build();
   }
 
-  private void processBus(Bus bus, Calendar now) {
-    TripDescriptor td;
+  private long fingerprintForBus(Bus bus, long now) {
+    /* The offset counts minutes since the bus last reported, so the report
+     minute stays the same for as long as the bus is silent. Direction and
+     destination change when a bus is put on its next trip at a terminal,
+     where its position need not change at all. */
+    long reportMinute = now / 60 - bus.getOffset();
+
+    long h = EntityFingerprintCache.start();
+    h = EntityFingerprintCache.mix(h, bus.getLatitude());
+    h = EntityFingerprintCache.mix(h, bus.getLongitude());
+    h = EntityFingerprintCache.mix(h, bus.getBlockId());
+    h = EntityFingerprintCache.mix(h, bus.getLabel());
+    h = EntityFingerprintCache.mix(h, bus.getDirection());
+    h = EntityFingerprintCache.mix(h, bus.getDestination());
+    h = EntityFingerprintCache.mix(h, reportMinute);
+    return h;
+  }
 
-    Calendar adjustedNow = (Calendar) now.clone();
-    adjustedNow.add(Calendar.MINUTE, -1 * bus.getOffset());
+  private boolean isUnchanged(String entityId, long fingerprint, long now) {
+    return _entityFingerprints.isUnchanged(entityId, fingerprint,
+            TimeUnit.SECONDS.toMillis(now),
+            TimeUnit.SECONDS.toMillis(_republishInterval));
+  }
 
-    try {
-      td = tripDescriptorForBlock(bus.getBlockId(), adjustedNow,
-              _busBlockMapper);
-    } catch (Exception e) {
-      td = null;
+  void processBus(Bus bus, long now, FeedUpdateBatch batch) {
+    String entityId = "BUS" + bus.getVehicleId();
+    long fingerprint = fingerprintForBus(bus, now);
+
+    if (isUnchanged(entityId, fingerprint, now)) {
+      _entityFreshness.touch(entityId, TimeUnit.SECONDS.toMillis(now),
+              TimeUnit.SECONDS.toMillis(_busExpireAfter));
+      _metrics.getBusMetrics().getEntitiesUnchanged().inc();
+      return;
     }
 
+    long adjustedNow = now - TimeUnit.MINUTES.toSeconds(bus.getOffset());
+    VehicleState vehicle = _vehicleStates.getOrCreate(entityId, now);
+
+    vehicle.setOffset(bus.getOffset());
+
+    LaneSchedule schedule = _busSchedule;
+    ResolvedTrip resolved = resolveTrip(schedule.getTripCache(), vehicle,
+            bus.getBlockId(), adjustedNow, bus.getDirection(),
+            bus.getDestination(), _metrics.getBusMetrics());
+    TripDescriptor td = (resolved != null) ? resolved.getDescriptor() : null;
+
     VehicleDescriptor vd = vehicleDescriptorForBus(bus);
-    Position pos = positionForBus(bus);
+    Position pos = positionForBus(bus, vehicle, adjustedNow, schedule);
 
     VehiclePosition.Builder vp = VehiclePosition.newBuilder();
 
@@ -230,23 +693,92 @@ public class SeptaRealtimeProvider {
     }
 
     vp.setVehicle(vd);
-    vp.setTimestamp(adjustedNow.getTimeInMillis() / 1000L);
-    vp.setPosition(pos);
+    vp.setTimestamp(adjustedNow);
 
-    String entityId = "BUS" + bus.getVehicleId();
+    if (pos != null) {
+      vp.setPosition(pos);
+    }
+
+    TripUpdate tu = (resolved != null && pos != null)
+            ? tripUpdateForBus(bus, resolved, vd, adjustedNow,
+                    schedule.getStore())
+            : null;
+
+    if (tu != null) {
+      vehicle.setTripUpdate(pushEntity(batch, entityId, _tripUpdatesSink, tu,
+              FeedEntity.TRIP_UPDATE_FIELD_NUMBER));
+      _tripUpdateEntities.add(entityId);
+      _metrics.getBusMetrics().getEntitiesPushed().inc();
+    } else if (_tripUpdateEntities.remove(entityId)) {
+      batch.addDeletedEntity(_tripUpdatesSink, entityId);
+      vehicle.setTripUpdate(null);
+    }
 
-    pushEntity(entityId, _vehiclePositionsSink, vp.build(),
-            FeedEntity.VEHICLE_FIELD_NUMBER);
+    vehicle.setVehiclePosition(pushEntity(batch, entityId,
+            _vehiclePositionsSink, vp.build(),
+            FeedEntity.VEHICLE_FIELD_NUMBER));
+    _metrics.getBusMetrics().getEntitiesPushed().inc();
 
-    _entityLastUpdate.put(entityId, now);
+    _entityFingerprints.update(entityId, fingerprint,
+            TimeUnit.SECONDS.toMillis(now));
+    _entityFreshness.touch(entityId, TimeUnit.SECONDS.toMillis(now),
+            TimeUnit.SECONDS.toMillis(_busExpireAfter));
   }
 
-  private Position positionForTrain(Train train) {
-    Position.Builder pb = Position.newBuilder();
+  /**
+   * Estimate a bus's delay from where it is along its trip, and predict its
+   * remaining stops from it.
+   *
+   * @return the trip update, or null if the bus could not be placed on its
+   * trip
+   */
+  private TripUpdate tripUpdateForBus(Bus bus, ResolvedTrip resolved,
+          VehicleDescriptor vd, long time, ScheduleStore store) {
+    int trip = store.getTripIndex(resolved.getDescriptor().getTripId());
+
+    if (trip < 0) {
+      return null;
+    }
+
+    double observed = time - resolved.getServiceDayOrigin();
+    double scheduled = StopTimePredictor.scheduledTimeAt(store, trip,
+            bus.getLatitude(), bus.getLongitude(), observed,
+            _busMaxDistanceFromTrip);
+
+    if (Double.isNaN(scheduled)) {
+      _metrics.getBusMetrics().getVehiclesOffTrip().inc();
+      return null;
+    }
 
-    pb.setLatitude((float) train.getLatitude());
-    pb.setLongitude((float) train.getLongitude());
-    return pb.build();
+    int nextStopTime = StopTimePredictor.findStopTimeAfter(store, trip,
+            scheduled);
+
+    if (nextStopTime < 0) {
+      return null;
+    }
+
+    int delay = (int) Math.round(observed - scheduled);
+
+    /* A bus laying over before its trip is expected to leave on time. */
+    if (observed < store.getTripStartTime(trip)) {
+      delay = Math.max(delay, 0);
+    }
+
+    TripUpdate.Builder tu = TripUpdate.newBuilder();
+
+    tu.setTrip(resolved.getDescriptor());
+    tu.setVehicle(vd);
+    tu.setTimestamp(time);
+
+    _busPredictor.addStopTimeUpdates(tu, store, trip, nextStopTime, delay);
+
+    return tu.build();
+  }
+
+  private Position positionForTrain(Train train, VehicleState vehicle,
+          long time, LaneSchedule schedule) {
+    return filterPosition(_railPositionFilter, vehicle, train.getLatitude(),
+            train.getLongitude(), time, schedule, _metrics.getRailMetrics());
   }
 
   private VehicleDescriptor vehicleDescriptorForTrain(Train train) {
@@ -258,20 +790,41 @@ public class SeptaRealtimeProvider {
     return vdb.build();
   }
 
-  private void processTrain(Train train, Calendar now) {
-    TripDescriptor td;
+  private long fingerprintForTrain(Train train) {
+    long h = EntityFingerprintCache.start();
+    h = EntityFingerprintCache.mix(h, train.getLatitude());
+    h = EntityFingerprintCache.mix(h, train.getLongitude());
+    h = EntityFingerprintCache.mix(h, train.getLate());
+    h = EntityFingerprintCache.mix(h, train.getNextStop());
+    h = EntityFingerprintCache.mix(h, train.getDestination());
+    h = EntityFingerprintCache.mix(h, train.getService());
+    return h;
+  }
 
-    try {
-      Calendar adjustedNow = (Calendar) now.clone();
-      adjustedNow.add(Calendar.MINUTE, -1 * train.getLate());
-      td = tripDescriptorForBlock(train.getTrainNumber(), adjustedNow,
-              _railBlockMapper);
-    } catch (Exception e) {
-      td = null;
+  void processTrain(Train train, long now, FeedUpdateBatch batch) {
+    String entityId = "TRAIN" + train.getTrainNumber();
+    long fingerprint = fingerprintForTrain(train);
+
+    if (isUnchanged(entityId, fingerprint, now)) {
+      _entityFreshness.touch(entityId, TimeUnit.SECONDS.toMillis(now),
+              TimeUnit.SECONDS.toMillis(_railExpireAfter));
+      _metrics.getRailMetrics().getEntitiesUnchanged().inc();
+      return;
     }
 
+    long adjustedNow = now - TimeUnit.MINUTES.toSeconds(train.getLate());
+    VehicleState vehicle = _vehicleStates.getOrCreate(entityId, now);
+
+    vehicle.setOffset(train.getLate());
+
+    LaneSchedule schedule = _railSchedule;
+    ResolvedTrip resolved = resolveTrip(schedule.getTripCache(), vehicle,
+            train.getTrainNumber(), adjustedNow, null, train.getDestination(),
+            _metrics.getRailMetrics());
+    TripDescriptor td = (resolved != null) ? resolved.getDescriptor() : null;
+
     VehicleDescriptor vd = vehicleDescriptorForTrain(train);
-    Position pos = positionForTrain(train);
+    Position pos = positionForTrain(train, vehicle, now, schedule);
 
     TripUpdate.Builder tu = TripUpdate.newBuilder();
     VehiclePosition.Builder vp = VehiclePosition.newBuilder();
@@ -281,130 +834,746 @@ public class SeptaRealtimeProvider {
     }
 
     vp.setVehicle(vd);
-    vp.setTimestamp(now.getTimeInMillis() / 1000L);
-    vp.setPosition(pos);
+    vp.setTimestamp(now);
+
+    if (pos != null) {
+      vp.setPosition(pos);
+    }
 
     if (td != null) {
       tu.setTrip(td);
     }
 
     tu.setVehicle(vd);
-    tu.setTimestamp(now.getTimeInMillis() / 1000L);
-
-    if (td != null && train.getLate() != 999) {
-      StopTimeUpdate.Builder stub = tu.addStopTimeUpdateBuilder();
+    tu.setTimestamp(now);
 
-      StopTime st = firstStopTimeForTripId(td.getTripId(), _railGtfsDao);
+    ScheduleStore store = schedule.getStore();
+    int trip = (td != null) ? store.getTripIndex(td.getTripId()) : -1;
 
-      stub.setStopId(st.getStop().getId().getId());
-      stub.setStopSequence(st.getStopSequence());
+    if (trip >= 0 && train.getLate() != 999) {
+      int nextStopTime = StopTimePredictor.findStopTimeByName(store, trip,
+              train.getNextStop());
 
-      StopTimeEvent.Builder steb = stub.getDepartureBuilder();
+      if (nextStopTime < 0) {
+        /* Predict the whole trip; consumers ignore stops already passed. */
+        _metrics.getRailMetrics().getNextStopUnmatched().inc();
+        nextStopTime = store.getTripStopTimesStart(trip);
+      }
 
-      steb.setDelay(train.getLate() * 60);
+      _railPredictor.addStopTimeUpdates(tu, store, trip, nextStopTime,
+              train.getLate() * 60);
     }
 
-    String entityId = "TRAIN" + train.getTrainNumber();
-
     if (tu.isInitialized()) {
-      pushEntity(entityId, _tripUpdatesSink, tu.build(),
-              FeedEntity.TRIP_UPDATE_FIELD_NUMBER);
+      vehicle.setTripUpdate(pushEntity(batch, entityId, _tripUpdatesSink,
+              tu.build(), FeedEntity.TRIP_UPDATE_FIELD_NUMBER));
+      _tripUpdateEntities.add(entityId);
+      _metrics.getRailMetrics().getEntitiesPushed().inc();
+    } else if (_tripUpdateEntities.remove(entityId)) {
+      batch.addDeletedEntity(_tripUpdatesSink, entityId);
+      vehicle.setTripUpdate(null);
     }
 
-    pushEntity(entityId, _vehiclePositionsSink, vp.build(),
-            FeedEntity.VEHICLE_FIELD_NUMBER);
+    vehicle.setVehiclePosition(pushEntity(batch, entityId,
+            _vehiclePositionsSink, vp.build(),
+            FeedEntity.VEHICLE_FIELD_NUMBER));
+    _metrics.getRailMetrics().getEntitiesPushed().inc();
 
-    _entityLastUpdate.put(entityId, now);
+    _entityFingerprints.update(entityId, fingerprint,
+            TimeUnit.SECONDS.toMillis(now));
+    _entityFreshness.touch(entityId, TimeUnit.SECONDS.toMillis(now),
+            TimeUnit.SECONDS.toMillis(_railExpireAfter));
   }
 
-  private void pushEntity(String id, GtfsRealtimeSink sink, Object value,
-          int field) {
-    GtfsRealtimeIncrementalUpdate griu = new GtfsRealtimeIncrementalUpdate();
-
+  /**
+   * @return the entity added to the batch
+   */
+  private FeedEntity pushEntity(FeedUpdateBatch batch, String id,
+          GtfsRealtimeSink sink, Object value, int field) {
     FeedEntity.Builder feb = FeedEntity.newBuilder();
 
     feb.setId(id);
     feb.setField(FeedEntity.getDescriptor().findFieldByNumber(field), value);
 
-    griu.addUpdatedEntity(feb.build());
-
-    sink.handleIncrementalUpdate(griu);
+    FeedEntity entity = feb.build();
+    batch.addUpdatedEntity(sink, entity);
+    return entity;
   }
 
-  private class BusRefreshTask implements Runnable {
+  /**
+   * A refresh lane, run as a pipeline of stages joined by bounded queues.
+   *
+   * The lane's own thread fetches the upstream feed and hands the body to the
+   * shared decode stage, which streams the vehicles into the shared resolve
+   * stage in chunks as they are decoded; once every chunk is resolved, the
+   * cycle's batch is handed to the publish stage to be committed. The fetch
+   * thread does not wait for the cycle to finish, so the next poll may arrive
+   * while it is still in progress; the older cycle is then superseded, and its
+   * remaining vehicles are left for the newer one.
+   *
+   * A cycle's decoded vehicles are held back until the one before it has been
+   * committed, so that each vehicle is processed by one worker at a time and
+   * the lane's batches are committed in order; the committing cycle then has
+   * the lane's own thread release them to the resolve stage, so that the
+   * shared decode and publish threads never wait for a lane's previous cycle.
+   * The vehicles a superseded cycle decoded but did not process are kept from
+   * expiring, and are resolved first by the next cycle, so that a lane that
+   * keeps falling behind does not starve the end of its payload.
+   */
+  private abstract class RefreshTask<T> implements Runnable {
+
+    private final String _lane;
+    private final Object _cycleLock = new Object();
+    private volatile Cycle _latest;
+
+    /**
+     * The entities of the vehicles in the last committed cycle, which are
+     * kept live while the upstream is unchanged.
+     */
+    private volatile List<String> _liveEntityIds = Collections.emptyList();
+
+    protected RefreshTask(String lane) {
+      _lane = lane;
+    }
+
+    /**
+     * @return the upstream response body, or null if it is unchanged since the
+     * last fetch
+     */
+    protected abstract byte[] fetch() throws Exception;
+
+    /**
+     * @return false if the handler stopped decoding early
+     */
+    protected abstract boolean decode(byte[] body, VehicleHandler<T> handler)
+            throws Exception;
+
+    protected abstract void process(T vehicle, long now,
+            FeedUpdateBatch batch);
+
+    /**
+     * Forget the last upstream response, so that it is fetched again even if
+     * it is unchanged.
+     */
+    protected abstract void invalidate();
+
+    protected abstract String describe(T vehicle);
+
+    protected abstract String entityId(T vehicle);
+
+    /**
+     * @return how long the lane's entities stay live without a refresh, in
+     * seconds
+     */
+    protected abstract int expireAfter();
+
+    protected abstract TripDescriptorCache tripCache();
+
+    protected abstract LaneMetrics laneMetrics();
+
+    /**
+     * @return the lane's own thread
+     */
+    protected abstract Executor executor();
+
+    /**
+     * @return the block to resolve for the vehicle, or null if it needs no
+     * block search, being unchanged since it was last published or still
+     * running its last trip
+     */
+    protected abstract String blockToResolve(T vehicle, long now);
+
+    /**
+     * @return the time at which the vehicle's block was active, in epoch
+     * seconds
+     */
+    protected abstract long blockActiveTime(T vehicle, long now);
+
+    /**
+     * Resolve the trips of every changed vehicle in a chunk in one batch, so
+     * that the per-vehicle processing finds them in the trip cache.
+     */
+    private void prefetchTrips(List<T> vehicles, long now) {
+      String[] blockIds = new String[vehicles.size()];
+      long[] blockActiveTimes = new long[vehicles.size()];
+      int n = 0;
+
+      for (T vehicle : vehicles) {
+        String blockId = blockToResolve(vehicle, now);
+
+        if (blockId != null) {
+          blockIds[n] = blockId;
+          blockActiveTimes[n] = blockActiveTime(vehicle, now);
+          n++;
+        }
+      }
 
+      try {
+        tripCache().getCandidates(Arrays.copyOf(blockIds, n),
+                Arrays.copyOf(blockActiveTimes, n));
+      } catch (RuntimeException ex) {
+        _log.warn("Exception while resolving " + _lane + " trips in bulk", ex);
+      }
+    }
+
+    /**
+     * Keep the vehicles of the last committed cycle from expiring, as the
+     * upstream is still reporting them.
+     *
+     * @return the number of entities refreshed
+     */
+    private int refreshLiveEntities() {
+      long now = _upstreamSource.currentTimeMillis();
+      long expireAfter = TimeUnit.SECONDS.toMillis(expireAfter());
+      int refreshed = 0;
+
+      for (String entityId : _liveEntityIds) {
+        if (_entityFreshness.refresh(entityId, now, expireAfter)) {
+          refreshed++;
+        }
+      }
+      return refreshed;
+    }
+
+    /**
+     * The fetch stage, run on the lane's own thread.
+     */
     @Override
     public void run() {
       try {
-        _log.info("Refreshing buses");
-        Collection<Bus> buses = _transitViewService.getBuses();
+        _log.info("Refreshing {}", _lane);
+        long start = System.nanoTime();
 
-        Calendar now = Calendar.getInstance();
+        byte[] body = fetch();
 
-        for (Bus bus : buses) {
-          _log.info("Processing bus {}", bus.getLabel());
+        if (body == null) {
+          if (_upstreamSource.isFinished()) {
+            /* Nothing is reporting these vehicles any more. */
+            _log.info("Upstream {} finished; leaving its entities to expire",
+                    _lane);
+            return;
+          }
 
-          try {
-            processBus(bus, now);
-          } catch (Exception ex) {
-            _log.warn("Exception while processing bus " + bus.getLabel(), ex);
+          _log.info("Upstream {} unchanged; refreshed {} live entities", _lane,
+                  refreshLiveEntities());
+          return;
+        }
+
+        final Cycle cycle = new Cycle(body, TimeUnit.MILLISECONDS.toSeconds(
+                _upstreamSource.currentTimeMillis()), start, System.nanoTime());
+        boolean open;
+
+        synchronized (_cycleLock) {
+          Cycle previous = _latest;
+
+          _latest = cycle;
+          open = previous == null || previous._published;
+
+          if (!open) {
+            previous._next = cycle;
           }
+        }
 
+        if (open) {
+          cycle.openGate(Collections.<String>emptySet());
+        } else {
+          laneMetrics().getCyclesSuperseded().inc();
         }
+
+        _decodeStage.submit(new Runnable() {
+          @Override
+          public void run() {
+            cycle.stream();
+          }
+        });
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
       } catch (Exception ex) {
-        _log.warn("Error in bus refresh task", ex);
+        _log.warn("Error in " + _lane + " refresh task", ex);
       }
     }
-  }
 
-  private class TrainRefreshTask implements Runnable {
+    /**
+     * One poll's worth of vehicles on their way through the pipeline.
+     */
+    private class Cycle implements VehicleHandler<T> {
+
+      private final long _now;
+      private final long _start;
+      private final long _fetched;
+      private final FeedUpdateBatch _batch = new FeedUpdateBatch();
+
+      /* Held by the decode stage until it finishes, by the gate until it
+       opens, and by each chunk until it is resolved; the last to release it
+       publishes the cycle. */
+      private final AtomicInteger _pending = new AtomicInteger(2);
+      private final AtomicInteger _resolved = new AtomicInteger();
+
+      /* The entities of the vehicles decoded but not processed because the
+       cycle was superseded. */
+      private final Set<String> _skipped = Collections.newSetFromMap(
+              new ConcurrentHashMap<String, Boolean>());
+
+      /* Guarded by _cycleLock. */
+      private boolean _published;
+      private Cycle _next;
+
+      /* The vehicles decoded while the gate is closed, or null once it is
+       open; guarded by the cycle. */
+      private List<T> _held = new ArrayList<>();
+
+      /* Decode stage only. */
+      private byte[] _body;
+      private List<T> _chunk = new ArrayList<>(RESOLVE_CHUNK_SIZE);
+      private final List<String> _entityIds = new ArrayList<>();
+      private int _decoded;
+
+      Cycle(byte[] body, long now, long start, long fetched) {
+        _body = body;
+        _now = now;
+        _start = start;
+        _fetched = fetched;
+      }
 
-    @Override
-    public void run() {
-      try {
-        _log.info("Refreshing trains");
-        Collection<Train> trains = _trainViewService.getTrains();
+      boolean isSuperseded() {
+        return _latest != this;
+      }
+
+      /**
+       * The decode stage.
+       */
+      void stream() {
+        try {
+          if (!isSuperseded()) {
+            decode(_body, this);
+          }
+          flush();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+          _log.warn("Error decoding " + _lane, ex);
+          invalidate();
+        } finally {
+          _body = null;
+          release();
+        }
+      }
 
-        Calendar now = Calendar.getInstance();
+      @Override
+      public boolean handle(T vehicle) {
+        if (isSuperseded()) {
+          return false;
+        }
 
-        for (Train train : trains) {
-          _log.info("Processing train {}", train.getTrainNumber());
+        _chunk.add(vehicle);
+        _entityIds.add(entityId(vehicle));
+        _decoded++;
+        laneMetrics().getDecoded().mark();
 
+        if (_chunk.size() == RESOLVE_CHUNK_SIZE) {
           try {
-            processTrain(train, now);
+            flush();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+        return true;
+      }
+
+      /**
+       * Hand the vehicles decoded so far to the resolve stage, or hold them
+       * until the gate opens.
+       */
+      private void flush() throws InterruptedException {
+        if (_chunk.isEmpty()) {
+          return;
+        }
+
+        List<T> chunk = _chunk;
+        _chunk = new ArrayList<>(RESOLVE_CHUNK_SIZE);
+
+        synchronized (this) {
+          if (_held != null) {
+            _held.addAll(chunk);
+            return;
+          }
+        }
+
+        submit(chunk);
+      }
+
+      /**
+       * Release the held vehicles to the resolve stage, once the previous
+       * cycle has been committed. Those the previous cycle skipped go first.
+       *
+       * @param carriedOver the entities the previous cycle skipped
+       */
+      void openGate(Set<String> carriedOver) {
+        List<T> held;
+
+        synchronized (this) {
+          held = _held;
+          _held = null;
+        }
+
+        try {
+          if (isSuperseded()) {
+            _skipped.addAll(carriedOver);
+            skip(held, 0);
+            return;
+          }
+
+          List<T> ordered = new ArrayList<>(held.size());
+          List<T> rest = new ArrayList<>(held.size());
+
+          for (T vehicle : held) {
+            (carriedOver.contains(entityId(vehicle)) ? ordered : rest)
+                    .add(vehicle);
+          }
+          ordered.addAll(rest);
+
+          for (int i = 0; i < ordered.size(); i += RESOLVE_CHUNK_SIZE) {
+            submit(new ArrayList<>(ordered.subList(i,
+                    Math.min(i + RESOLVE_CHUNK_SIZE, ordered.size()))));
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } finally {
+          release();
+        }
+      }
+
+      private void submit(final List<T> chunk) throws InterruptedException {
+        _pending.incrementAndGet();
+        try {
+          _resolveStage.submit(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                resolve(chunk);
+              } finally {
+                release();
+              }
+            }
+          });
+        } catch (InterruptedException ex) {
+          _pending.decrementAndGet();
+          throw ex;
+        }
+      }
+
+      /**
+       * The resolve stage.
+       */
+      private void resolve(List<T> chunk) {
+        if (isSuperseded()) {
+          skip(chunk, 0);
+          return;
+        }
+
+        prefetchTrips(chunk, _now);
+
+        for (int i = 0; i < chunk.size(); i++) {
+          if (isSuperseded()) {
+            skip(chunk, i);
+            return;
+          }
+
+          T vehicle = chunk.get(i);
+
+          try {
+            process(vehicle, _now, _batch);
           } catch (Exception ex) {
-            _log.warn(
-                    "Exception while processing train " + train.getTrainNumber(),
-                    ex);
+            _log.warn("Exception while processing " + describe(vehicle), ex);
           }
 
+          _resolved.incrementAndGet();
+          laneMetrics().getResolved().mark();
+        }
+      }
+
+      /**
+       * Leave the vehicles from the given index on for the next cycle,
+       * keeping their entities from expiring in the meantime.
+       */
+      private void skip(List<T> vehicles, int from) {
+        long now = TimeUnit.SECONDS.toMillis(_now);
+        long expireAfter = TimeUnit.SECONDS.toMillis(expireAfter());
+
+        for (int i = from; i < vehicles.size(); i++) {
+          String entityId = entityId(vehicles.get(i));
+
+          _skipped.add(entityId);
+          _entityFreshness.refresh(entityId, now, expireAfter);
+        }
+        laneMetrics().getVehiclesSuperseded().inc(vehicles.size() - from);
+      }
+
+      private void release() {
+        if (_pending.decrementAndGet() != 0) {
+          return;
+        }
+
+        try {
+          _publishStage.submit(new Runnable() {
+            @Override
+            public void run() {
+              publish();
+            }
+          });
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      /**
+       * The publish stage. A superseded cycle still commits the vehicles it
+       * resolved, as their fingerprints have already been recorded.
+       */
+      private void publish() {
+        try {
+          _batch.commit();
+          _liveEntityIds = _entityIds;
+        } finally {
+          openNext();
+        }
+
+        long end = System.nanoTime();
+        laneMetrics().getCycle().update(end - _start, TimeUnit.NANOSECONDS);
+
+        if (isSuperseded()) {
+          _log.warn("Superseded {} refresh after resolving {} of {} decoded",
+                  _lane, _resolved.get(), _decoded);
+        }
+
+        _log.info("Refreshed {} {} in {} ms (fetch {} ms, trip cache {})",
+                _resolved.get(), _lane,
+                TimeUnit.NANOSECONDS.toMillis(end - _start),
+                TimeUnit.NANOSECONDS.toMillis(_fetched - _start),
+                tripCache().stats());
+      }
+
+      /**
+       * Mark the cycle committed, and have the lane's own thread open the
+       * gate of the cycle after it, if there is one yet; opening it may wait
+       * for room in the resolve stage, which the publish stage must not.
+       */
+      private void openNext() {
+        final Cycle next;
+
+        synchronized (_cycleLock) {
+          _published = true;
+          next = _next;
+          _next = null;
+        }
+
+        if (next == null) {
+          return;
+        }
+
+        try {
+          executor().execute(new Runnable() {
+            @Override
+            public void run() {
+              next.openGate(_skipped);
+            }
+          });
+        } catch (RejectedExecutionException ex) {
+          /* The provider is stopping. */
         }
-      } catch (Exception ex) {
-        _log.warn("Error in train refresh task", ex);
       }
     }
   }
 
+  private class BusRefreshTask extends RefreshTask<Bus> {
+
+    public BusRefreshTask() {
+      super("buses");
+    }
+
+    @Override
+    protected byte[] fetch() throws Exception {
+      return _transitViewService.fetchBuses();
+    }
+
+    @Override
+    protected boolean decode(byte[] body, VehicleHandler<Bus> handler)
+            throws Exception {
+      return _transitViewService.decodeBuses(body, handler);
+    }
+
+    @Override
+    protected void process(Bus bus, long now, FeedUpdateBatch batch) {
+      processBus(bus, now, batch);
+    }
+
+    @Override
+    protected void invalidate() {
+      _transitViewService.invalidate();
+    }
+
+    @Override
+    protected String describe(Bus bus) {
+      return "bus " + bus.getLabel();
+    }
+
+    @Override
+    protected String entityId(Bus bus) {
+      return "BUS" + bus.getVehicleId();
+    }
+
+    @Override
+    protected int expireAfter() {
+      return _busExpireAfter;
+    }
+
+    @Override
+    protected TripDescriptorCache tripCache() {
+      return _busSchedule.getTripCache();
+    }
+
+    @Override
+    protected String blockToResolve(Bus bus, long now) {
+      String entityId = entityId(bus);
+
+      if (isUnchanged(entityId, fingerprintForBus(bus, now), now)
+              || !needsBlockSearch(entityId, tripCache(), bus.getBlockId(),
+                      bus.getDestination(), blockActiveTime(bus, now))) {
+        return null;
+      }
+      return bus.getBlockId();
+    }
+
+    @Override
+    protected long blockActiveTime(Bus bus, long now) {
+      return now - TimeUnit.MINUTES.toSeconds(bus.getOffset());
+    }
+
+    @Override
+    protected LaneMetrics laneMetrics() {
+      return _metrics.getBusMetrics();
+    }
+
+    @Override
+    protected Executor executor() {
+      return _busExecutor;
+    }
+  }
+
+  private class TrainRefreshTask extends RefreshTask<Train> {
+
+    public TrainRefreshTask() {
+      super("trains");
+    }
+
+    @Override
+    protected byte[] fetch() throws Exception {
+      return _trainViewService.fetchTrains();
+    }
+
+    @Override
+    protected boolean decode(byte[] body, VehicleHandler<Train> handler)
+            throws Exception {
+      return _trainViewService.decodeTrains(body, handler);
+    }
+
+    @Override
+    protected void process(Train train, long now, FeedUpdateBatch batch) {
+      processTrain(train, now, batch);
+    }
+
+    @Override
+    protected void invalidate() {
+      _trainViewService.invalidate();
+    }
+
+    @Override
+    protected String describe(Train train) {
+      return "train " + train.getTrainNumber();
+    }
+
+    @Override
+    protected String entityId(Train train) {
+      return "TRAIN" + train.getTrainNumber();
+    }
+
+    @Override
+    protected int expireAfter() {
+      return _railExpireAfter;
+    }
+
+    @Override
+    protected TripDescriptorCache tripCache() {
+      return _railSchedule.getTripCache();
+    }
+
+    @Override
+    protected String blockToResolve(Train train, long now) {
+      String entityId = entityId(train);
+
+      if (isUnchanged(entityId, fingerprintForTrain(train), now)
+              || !needsBlockSearch(entityId, tripCache(),
+                      train.getTrainNumber(), train.getDestination(),
+                      blockActiveTime(train, now))) {
+        return null;
+      }
+      return train.getTrainNumber();
+    }
+
+    @Override
+    protected long blockActiveTime(Train train, long now) {
+      return now - TimeUnit.MINUTES.toSeconds(train.getLate());
+    }
+
+    @Override
+    protected LaneMetrics laneMetrics() {
+      return _metrics.getRailMetrics();
+    }
+
+    @Override
+    protected Executor executor() {
+      return _railExecutor;
+    }
+  }
+
   private class ExpireDataTask implements Runnable {
 
     @Override
     public void run() {
-      Calendar now = Calendar.getInstance();
-      for (Entry<String, Calendar> e : _entityLastUpdate.entrySet()) {
-        String entityId = e.getKey();
-        Calendar lastUpdate = e.getValue();
+      FeedUpdateBatch batch = new FeedUpdateBatch();
+      List<String> expired = _entityFreshness.drainExpired(
+              _upstreamSource.currentTimeMillis());
+
+      for (String entityId : expired) {
+        batch.addDeletedEntity(_tripUpdatesSink, entityId);
+        batch.addDeletedEntity(_vehiclePositionsSink, entityId);
+        _entityFingerprints.remove(entityId);
+        _vehicleStates.remove(entityId);
+        _tripUpdateEntities.remove(entityId);
+      }
 
-        long delta = now.getTimeInMillis() - lastUpdate.getTimeInMillis();
+      batch.commit();
+      _metrics.getEntitiesExpired().inc(expired.size());
+    }
+  }
 
-        if (delta > EXPIRE_DATA_AFTER) {
-          GtfsRealtimeIncrementalUpdate griu = new GtfsRealtimeIncrementalUpdate();
-          griu.addDeletedEntity(entityId);
+  private class CheckpointTask implements Runnable {
 
-          _tripUpdatesSink.handleIncrementalUpdate(griu);
-          _vehiclePositionsSink.handleIncrementalUpdate(griu);
-          _entityLastUpdate.remove(entityId);
-        }
-      }
+    @Override
+    public void run() {
+      writeCheckpoint();
+    }
+  }
+
+  private class ReloadScheduleTask implements Runnable {
+
+    @Override
+    public void run() {
+      _busSchedule = reloadIfStale(_busSchedule, _busGtfsPath,
+              _busServiceAreaRadius, _metrics.getBusMetrics());
+      _railSchedule = reloadIfStale(_railSchedule, _railGtfsPath,
+              _railServiceAreaRadius, _metrics.getRailMetrics());
     }
   }
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A checkpoint of the provider's live state, from which a restarted provider
+ * can resume publishing without waiting for its first refresh.
+ *
+ * For each live vehicle, the file holds its {@link VehicleState}, including
+ * the trip update and vehicle position entities last published for it, and
+ * when those entities expire. Fixed fields are written with {@link DataOutputStream};
+ * trip descriptors and entities as length-delimited protocol buffers. The
+ * file is written to a temporary file and renamed into place, so a crash
+ * mid-write leaves the previous checkpoint intact.
+ *
+ * @author kurt
+ */
+public class StateCheckpoint {
+
+  private static final int MAGIC = 0x53505443;
+  private static final int VERSION = 1;
+
+  private static final int HAS_TRIP = 1;
+  private static final int HAS_TRIP_UPDATE = 2;
+  private static final int HAS_VEHICLE_POSITION = 4;
+
+  private StateCheckpoint() {
+
+  }
+
+  /**
+   * The checkpointed state of one vehicle.
+   */
+  public static class Vehicle {
+
+    private final VehicleState _state;
+    private final long _expiresAt;
+
+    /**
+     * @param state
+     * @param expiresAt when the vehicle's entities expire unless refreshed, in
+     * epoch milliseconds
+     */
+    public Vehicle(VehicleState state, long expiresAt) {
+      _state = state;
+      _expiresAt = expiresAt;
+    }
+
+    public VehicleState getState() {
+      return _state;
+    }
+
+    /**
+     * @return when the vehicle's entities expire unless refreshed, in epoch
+     * milliseconds
+     */
+    public long getExpiresAt() {
+      return _expiresAt;
+    }
+  }
+
+  /**
+   * Write a checkpoint, replacing any previous one.
+   *
+   * @param file
+   * @param vehicles
+   * @throws IOException
+   */
+  public static void write(File file, Collection<Vehicle> vehicles)
+          throws IOException {
+    Path target = file.toPath().toAbsolutePath();
+    Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+
+    try {
+      try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+              DataOutputStream out = new DataOutputStream(
+                      new BufferedOutputStream(fos, 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(vehicles.size());
+
+        for (Vehicle v : vehicles) {
+          writeVehicle(out, v);
+        }
+
+        out.flush();
+        fos.getChannel().force(true);
+      }
+
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+
+    forceDirectory(target.getParent());
+  }
+
+  /**
+   * Flush the checkpoint's directory entry, so that a crash cannot leave the
+   * previous checkpoint in place of one already reported as written. Where a
+   * directory cannot be opened for reading, this is skipped.
+   */
+  private static void forceDirectory(Path dir) throws IOException {
+    FileChannel channel;
+
+    try {
+      channel = FileChannel.open(dir, StandardOpenOption.READ);
+    } catch (IOException ex) {
+      return;
+    }
+
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Read a checkpoint, leaving out vehicles that have already expired.
+   *
+   * @param file
+   * @param nowMillis the current time, in epoch milliseconds
+   * @return the vehicles whose entities have not yet expired
+   * @throws IOException if the file is not a checkpoint of the current
+   * version, or is truncated
+   */
+  public static List<Vehicle> read(File file, long nowMillis)
+          throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 1 << 16))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a version " + VERSION
+                + " state checkpoint: " + file);
+      }
+
+      int count = in.readInt();
+      List<Vehicle> vehicles = new ArrayList<>(count);
+
+      for (int i = 0; i < count; i++) {
+        Vehicle v = readVehicle(in);
+
+        if (v.getExpiresAt() > nowMillis) {
+          vehicles.add(v);
+        }
+      }
+      return vehicles;
+    }
+  }
+
+  private static void writeVehicle(DataOutputStream out, Vehicle v)
+          throws IOException {
+    VehicleState state = v.getState();
+    ResolvedTrip trip = state.getAssignedTrip();
+    FeedEntity tripUpdate = state.getTripUpdate();
+    FeedEntity vehiclePosition = state.getVehiclePosition();
+
+    out.writeUTF(state.getVehicleId());
+    out.writeLong(state.getFirstSeen());
+    out.writeLong(v.getExpiresAt());
+    out.writeInt(state.getOffset());
+
+    synchronized (state) {
+      out.writeDouble(state.lat);
+      out.writeDouble(state.lon);
+      out.writeLong(state.time);
+      out.writeFloat(state.bearing);
+      out.writeFloat(state.speed);
+    }
+
+    out.writeByte(((trip != null) ? HAS_TRIP : 0)
+            | ((tripUpdate != null) ? HAS_TRIP_UPDATE : 0)
+            | ((vehiclePosition != null) ? HAS_VEHICLE_POSITION : 0));
+
+    if (trip != null) {
+      trip.getDescriptor().writeDelimitedTo(out);
+      out.writeLong(trip.getServiceDayOrigin());
+      out.writeLong(trip.getStartTime());
+      out.writeLong(trip.getEndTime());
+    }
+
+    if (tripUpdate != null) {
+      tripUpdate.writeDelimitedTo(out);
+    }
+
+    if (vehiclePosition != null) {
+      vehiclePosition.writeDelimitedTo(out);
+    }
+  }
+
+  private static Vehicle readVehicle(DataInputStream in) throws IOException {
+    VehicleState state = new VehicleState(in.readUTF(), in.readLong());
+    long expiresAt = in.readLong();
+
+    state.setOffset(in.readInt());
+    state.lat = in.readDouble();
+    state.lon = in.readDouble();
+    state.time = in.readLong();
+    state.bearing = in.readFloat();
+    state.speed = in.readFloat();
+
+    int flags = in.readByte();
+
+    if ((flags & HAS_TRIP) != 0) {
+      TripDescriptor descriptor = present(
+              TripDescriptor.parseDelimitedFrom(in));
+
+      state.assignTrip(null, null, null, new ResolvedTrip(descriptor,
+              in.readLong(), in.readLong(), in.readLong()));
+    }
+
+    if ((flags & HAS_TRIP_UPDATE) != 0) {
+      state.setTripUpdate(present(FeedEntity.parseDelimitedFrom(in)));
+    }
+
+    if ((flags & HAS_VEHICLE_POSITION) != 0) {
+      state.setVehiclePosition(present(FeedEntity.parseDelimitedFrom(in)));
+    }
+
+    return new Vehicle(state, expiresAt);
+  }
+
+  /**
+   * parseDelimitedFrom returns null, rather than throwing, when the stream
+   * ends before the message; in a checkpoint that means it was truncated.
+   */
+  private static <T> T present(T message) throws EOFException {
+    if (message == null) {
+      throw new EOFException("State checkpoint ends mid-record");
+    }
+    return message;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.kurtraschke.septa.gtfsrealtime.schedule.StopTimes;
+
+/**
+ * Propagates a vehicle's current delay over the remaining stops of its trip.
+ *
+ * The delay carries forward from stop to stop, less whatever the schedule
+ * allows the vehicle to recover: dwell time beyond the minimum a vehicle needs
+ * at a stop is given up to make up lost time, and if a half-life is set, the
+ * delay also decays exponentially with scheduled running time. Delays are
+ * only ever recovered towards zero; an early vehicle is assumed to hold.
+ *
+ * A vehicle that does not report its delay can be placed on its trip from its
+ * position instead: it is projected onto the straight lines between
+ * consecutive timed stops, and the scheduled time at that point, interpolated
+ * between the two stops, gives its delay.
+ *
+ * Works directly on the stop time columns of the schedule, so locating a
+ * vehicle or making a prediction costs a pass or two over the stop times of
+ * one trip and allocates nothing beyond the stop time updates themselves.
+ *
+ * @author kurt
+ */
+public class StopTimePredictor {
+
+  private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+  /**
+   * How much farther from the trip than its nearest segment, in meters, a
+   * vehicle may be from another segment for that segment to be considered
+   * instead; this disambiguates trips that pass the same place twice.
+   */
+  private static final double SEGMENT_TOLERANCE = 100;
+
+  private final int _minDwell;
+  private final double _decayPerSecond;
+
+  /**
+   * @param minDwell the shortest time, in seconds, a late vehicle spends at a
+   * stop
+   * @param delayHalfLife the scheduled running time, in seconds, over which
+   * half of a delay is recovered; 0 for none
+   */
+  public StopTimePredictor(int minDwell, int delayHalfLife) {
+    _minDwell = minDwell;
+    _decayPerSecond = (delayHalfLife > 0) ? Math.log(2) / delayHalfLife : 0;
+  }
+
+  /**
+   * @param store
+   * @param trip
+   * @param stopName
+   * @return the first stop time of the trip at a stop of the given name
+   * (ignoring case), or -1 if there is none
+   */
+  public static int findStopTimeByName(StopTimes store, int trip,
+          String stopName) {
+    if (stopName == null) {
+      return -1;
+    }
+
+    String name = stopName.trim();
+
+    for (int st = store.getTripStopTimesStart(trip);
+            st < store.getTripStopTimesEnd(trip); st++) {
+      if (store.getStopName(store.getStopTimeStop(st)).equalsIgnoreCase(name)) {
+        return st;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Place a vehicle on its trip by position.
+   *
+   * @param store
+   * @param trip
+   * @param lat
+   * @param lon
+   * @param observedTime the time the vehicle was at the position, in seconds
+   * past the trip's service day origin
+   * @param maxDistance how far from the trip, in meters, the vehicle may be
+   * @return the scheduled time, in seconds past the service day origin, at
+   * which the trip passes the vehicle's position; NaN if the vehicle is not on
+   * the trip
+   */
+  public static double scheduledTimeAt(StopTimes store, int trip,
+          double lat, double lon, double observedTime, double maxDistance) {
+    double metersPerDegreeLon = METERS_PER_DEGREE
+            * Math.cos(Math.toRadians(lat));
+    double nearest = Double.POSITIVE_INFINITY;
+
+    /* The first pass finds the distance to the nearest segment; the second
+     picks, among the segments about as near, the one whose scheduled time is
+     closest to the observed time. */
+    for (int pass = 0; pass < 2; pass++) {
+      double limit = nearest + SEGMENT_TOLERANCE;
+      double best = Double.NaN;
+      double bestDeviation = Double.POSITIVE_INFINITY;
+      double prevX = 0;
+      double prevY = 0;
+      int prevDeparture = -1;
+
+      for (int st = store.getTripStopTimesStart(trip);
+              st < store.getTripStopTimesEnd(trip); st++) {
+        int arrival = store.getStopTimeArrival(st);
+        int departure = store.getStopTimeDeparture(st);
+
+        if (arrival < 0) {
+          arrival = departure;
+        }
+        if (departure < 0) {
+          departure = arrival;
+        }
+        if (arrival < 0) {
+          continue;
+        }
+
+        int stop = store.getStopTimeStop(st);
+        double x = (store.getStopLon(stop) - lon) * metersPerDegreeLon;
+        double y = (store.getStopLat(stop) - lat) * METERS_PER_DEGREE;
+
+        if (prevDeparture >= 0) {
+          double dx = x - prevX;
+          double dy = y - prevY;
+          double lengthSquared = dx * dx + dy * dy;
+          double t = (lengthSquared > 0)
+                  ? Math.max(0, Math.min(1,
+                                  -(prevX * dx + prevY * dy) / lengthSquared))
+                  : 0;
+          double distance = Math.hypot(prevX + t * dx, prevY + t * dy);
+
+          if (pass == 0) {
+            nearest = Math.min(nearest, distance);
+          } else if (distance <= limit) {
+            double scheduled = prevDeparture + t * (arrival - prevDeparture);
+            double deviation = Math.abs(observedTime - scheduled);
+
+            if (deviation < bestDeviation) {
+              best = scheduled;
+              bestDeviation = deviation;
+            }
+          }
+        }
+
+        prevX = x;
+        prevY = y;
+        prevDeparture = departure;
+      }
+
+      if (pass == 0 && !(nearest <= maxDistance)) {
+        return Double.NaN;
+      }
+
+      if (pass == 1) {
+        return best;
+      }
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * @return the first stop time of the trip scheduled to arrive at or after
+   * the given time, or -1 if there is none
+   */
+  public static int findStopTimeAfter(StopTimes store, int trip,
+          double scheduledTime) {
+    for (int st = store.getTripStopTimesStart(trip);
+            st < store.getTripStopTimesEnd(trip); st++) {
+      int arrival = store.getStopTimeArrival(st);
+
+      if (arrival < 0) {
+        arrival = store.getStopTimeDeparture(st);
+      }
+
+      if (arrival >= scheduledTime) {
+        return st;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Add a stop time update for each timed stop of a trip from a given stop
+   * time onwards.
+   *
+   * @param tu
+   * @param store
+   * @param trip
+   * @param fromStopTime the stop time the vehicle is next due at
+   * @param delay the vehicle's delay, in seconds, on arrival at fromStopTime
+   */
+  public void addStopTimeUpdates(TripUpdate.Builder tu, StopTimes store,
+          int trip, int fromStopTime, int delay) {
+    double d = delay;
+    int lastDeparture = -1;
+
+    for (int st = fromStopTime; st < store.getTripStopTimesEnd(trip); st++) {
+      int arrival = store.getStopTimeArrival(st);
+      int departure = store.getStopTimeDeparture(st);
+
+      if (arrival < 0) {
+        arrival = departure;
+      }
+      if (departure < 0) {
+        departure = arrival;
+      }
+      if (arrival < 0) {
+        continue;
+      }
+
+      if (lastDeparture >= 0 && d > 0 && _decayPerSecond > 0) {
+        d *= Math.exp(-_decayPerSecond * Math.max(0, arrival - lastDeparture));
+      }
+
+      int arrivalDelay = (int) Math.round(d);
+
+      if (d > 0) {
+        d = Math.max(0, d - Math.max(0, departure - arrival - _minDwell));
+      }
+
+      int departureDelay = (int) Math.round(d);
+
+      StopTimeUpdate.Builder stub = tu.addStopTimeUpdateBuilder();
+
+      stub.setStopId(store.getStopId(store.getStopTimeStop(st)));
+      stub.setStopSequence(store.getStopTimeSequence(st));
+      stub.getArrivalBuilder().setDelay(arrivalDelay);
+      stub.getDepartureBuilder().setDelay(departureDelay);
+
+      lastDeparture = departure;
+    }
+  }
+}
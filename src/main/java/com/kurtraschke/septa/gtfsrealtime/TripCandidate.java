@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+/**
+ * A trip that a vehicle on a block may be running, together with what is
+ * needed to rank it against the block's other candidates.
+ *
+ * @author kurt
+ */
+public class TripCandidate {
+
+  private final ResolvedTrip _trip;
+  private final int _layover;
+  private final String _destination;
+  private final double _bearing;
+
+  /**
+   * @param trip
+   * @param layover see {@link #getLayover()}
+   * @param destination the trip's headsign, normalized with
+   * {@link TripSelector#normalizeDestination(String)}
+   * @param bearing see {@link #getBearing()}
+   */
+  public TripCandidate(ResolvedTrip trip, int layover, String destination,
+          double bearing) {
+    _trip = trip;
+    _layover = layover;
+    _destination = destination;
+    _bearing = bearing;
+  }
+
+  public ResolvedTrip getTrip() {
+    return _trip;
+  }
+
+  /**
+   * @return 0 if the trip is scheduled to be running; otherwise the seconds
+   * until it is scheduled to start (positive) or since it was scheduled to end
+   * (negative)
+   */
+  public int getLayover() {
+    return _layover;
+  }
+
+  public String getDestination() {
+    return _destination;
+  }
+
+  /**
+   * @return the bearing from the trip's first stop to its last, in degrees
+   * clockwise from true north; NaN if the trip ends near where it starts
+   */
+  public double getBearing() {
+    return _bearing;
+  }
+}
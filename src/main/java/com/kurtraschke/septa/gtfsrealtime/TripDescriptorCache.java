@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.kurtraschke.septa.gtfsrealtime.model.ActivatedTrip;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
+import com.kurtraschke.septa.gtfsrealtime.services.BlockToTripMapperService;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memoizes the candidate trips of each block, per minute of block activity.
+ *
+ * Each cache is bound to the {@link BlockToTripMapperService} it was built
+ * for; when the GTFS is reloaded, a new cache must be built alongside the new
+ * mapper.
+ *
+ * @author kurt
+ */
+public class TripDescriptorCache {
+
+  private static final long MINUTE_IN_SECONDS = 60;
+  private static final TripCandidate[] NO_CANDIDATES = new TripCandidate[0];
+
+  private final BlockToTripMapperService _blockMapper;
+  private final ScheduleStore _store;
+  private final String _agencyId;
+  private final int _layoverWindow;
+  private final Cache<Key, TripCandidate[]> _cache;
+
+  /**
+   * @param blockMapper
+   * @param store the schedule the block mapper was built from
+   * @param agencyId
+   * @param layoverWindow how long before a trip is scheduled to start, or
+   * after it is scheduled to end, it remains a candidate, in seconds
+   * @param maximumSize
+   */
+  public TripDescriptorCache(BlockToTripMapperService blockMapper,
+          ScheduleStore store, String agencyId, int layoverWindow,
+          long maximumSize) {
+    _blockMapper = blockMapper;
+    _store = store;
+    _agencyId = agencyId;
+    _layoverWindow = layoverWindow;
+    _cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Find the candidate trips of a block, truncating the activation time to
+   * the minute.
+   *
+   * @param blockId
+   * @param blockActiveTime in epoch seconds
+   * @return the candidates, latest scheduled start first; empty if there are
+   * none or blockId is null
+   */
+  public TripCandidate[] getCandidates(final String blockId,
+          long blockActiveTime) {
+    if (blockId == null) {
+      return NO_CANDIDATES;
+    }
+
+    final long minute = blockActiveTime / MINUTE_IN_SECONDS;
+
+    try {
+      return _cache.get(new Key(blockId, minute),
+              new Callable<TripCandidate[]>() {
+                @Override
+                public TripCandidate[] call() {
+                  return candidates(_blockMapper.findCandidateTrips(_agencyId,
+                          blockId, minute * MINUTE_IN_SECONDS,
+                          _blockMapper.getAutoMaxLookBack(), _layoverWindow));
+                }
+              });
+    } catch (ExecutionException ex) {
+      throw new IllegalStateException(ex.getCause());
+    }
+  }
+
+  /**
+   * Find the candidate trips of many blocks at once, truncating each
+   * activation time to the minute; cache misses are resolved together with
+   * {@link BlockToTripMapperService#findCandidateTrips(String, String[], long[], int, int)}.
+   *
+   * @param blockIds
+   * @param blockActiveTimes in epoch seconds, parallel to blockIds
+   * @return the candidates, parallel to blockIds, as returned by
+   * {@link #getCandidates(String, long)}
+   */
+  public TripCandidate[][] getCandidates(String[] blockIds,
+          long[] blockActiveTimes) {
+    int n = blockIds.length;
+    TripCandidate[][] results = new TripCandidate[n][];
+    Key[] keys = new Key[n];
+    int[] misses = new int[n];
+    int missCount = 0;
+
+    for (int i = 0; i < n; i++) {
+      if (blockIds[i] == null) {
+        results[i] = NO_CANDIDATES;
+        continue;
+      }
+
+      keys[i] = new Key(blockIds[i], blockActiveTimes[i] / MINUTE_IN_SECONDS);
+      results[i] = _cache.getIfPresent(keys[i]);
+
+      if (results[i] == null) {
+        misses[missCount++] = i;
+      }
+    }
+
+    if (missCount == 0) {
+      return results;
+    }
+
+    String[] missBlockIds = new String[missCount];
+    long[] missTimes = new long[missCount];
+
+    for (int m = 0; m < missCount; m++) {
+      missBlockIds[m] = blockIds[misses[m]];
+      missTimes[m] = keys[misses[m]]._minute * MINUTE_IN_SECONDS;
+    }
+
+    ActivatedTrip[][] trips = _blockMapper.findCandidateTrips(_agencyId,
+            missBlockIds, missTimes, _blockMapper.getAutoMaxLookBack(),
+            _layoverWindow);
+
+    for (int m = 0; m < missCount; m++) {
+      TripCandidate[] candidates = candidates(trips[m]);
+
+      _cache.put(keys[misses[m]], candidates);
+      results[misses[m]] = candidates;
+    }
+
+    return results;
+  }
+
+  public CacheStats stats() {
+    return _cache.stats();
+  }
+
+  public void invalidateAll() {
+    _cache.invalidateAll();
+  }
+
+  private TripCandidate[] candidates(ActivatedTrip[] trips) {
+    if (trips.length == 0) {
+      return NO_CANDIDATES;
+    }
+
+    TripCandidate[] candidates = new TripCandidate[trips.length];
+
+    for (int i = 0; i < trips.length; i++) {
+      candidates[i] = candidate(trips[i]);
+    }
+    return candidates;
+  }
+
+  private TripCandidate candidate(ActivatedTrip at) {
+    TripDescriptor.Builder tdb = TripDescriptor.newBuilder();
+
+    tdb.setTripId(at.getTripId());
+    tdb.setRouteId(at.getRouteId());
+
+    tdb.setStartDate(at.getStartDate());
+
+    int index = _store.getTripIndex(at.getTripId());
+    long origin = at.getServiceDayOrigin();
+    ResolvedTrip trip = new ResolvedTrip(tdb.build(), origin,
+            origin + _store.getTripStartTime(index),
+            origin + _store.getTripEndTime(index));
+
+    return new TripCandidate(trip, at.getLayover(),
+            TripSelector.normalizeDestination(_store.getTripHeadsign(index)),
+            bearing(index));
+  }
+
+  /**
+   * @return the bearing from the trip's first stop to its last, or NaN if
+   * they are too close together for it to mean anything
+   */
+  private double bearing(int trip) {
+    int first = _store.getStopTimeStop(_store.getTripStopTimesStart(trip));
+    int last = _store.getStopTimeStop(_store.getTripStopTimesEnd(trip) - 1);
+    double lat1 = _store.getStopLat(first);
+    double lon1 = _store.getStopLon(first);
+    double lat2 = _store.getStopLat(last);
+    double lon2 = _store.getStopLon(last);
+
+    if (VehiclePositionFilter.distance(lat1, lon1, lat2, lon2)
+            < TripSelector.MIN_DIRECTIONAL_LENGTH) {
+      return Double.NaN;
+    }
+
+    return VehiclePositionFilter.bearing(lat1, lon1, lat2, lon2);
+  }
+
+  private static final class Key {
+
+    private final String _blockId;
+    private final long _minute;
+
+    Key(String blockId, long minute) {
+      _blockId = blockId;
+      _minute = minute;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * _blockId.hashCode() + (int) (_minute ^ (_minute >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return _minute == other._minute && _blockId.equals(other._blockId);
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import java.util.Locale;
+
+/**
+ * Chooses the trip a vehicle is most likely running among the candidate
+ * trips of its block.
+ *
+ * Candidates are ranked by, in order of precedence:
+ * <ol>
+ * <li>agreement of the trip's headsign with the destination the vehicle
+ * reports;</li>
+ * <li>agreement of the trip's overall direction with the direction the
+ * vehicle reports;</li>
+ * <li>being scheduled to be running, rather than about to start or just
+ * ended;</li>
+ * <li>being the trip the vehicle was assigned in the previous cycle;</li>
+ * <li>nearness to being scheduled to be running, preferring a trip about to
+ * start over one just ended;</li>
+ * <li>later scheduled start.</li>
+ * </ol>
+ * Each hint is ignored where it is missing or inconclusive, so a vehicle is
+ * never left without a trip merely because its block has more than one
+ * candidate.
+ *
+ * @author kurt
+ */
+public final class TripSelector {
+
+  /**
+   * A trip that starts and ends closer together than this, in meters, has no
+   * meaningful overall direction.
+   */
+  static final double MIN_DIRECTIONAL_LENGTH = 1000;
+
+  private static final double DIRECTION_AGREES = 60;
+  private static final double DIRECTION_DISAGREES = 120;
+
+  private static final int DESTINATION_SHIFT = 37;
+  private static final int DIRECTION_SHIFT = 35;
+  private static final int SCHEDULED_SHIFT = 34;
+  private static final int PREVIOUS_SHIFT = 33;
+  private static final int NEARNESS_SHIFT = 1;
+
+  private TripSelector() {
+
+  }
+
+  /**
+   * @param candidates as returned by
+   * {@link TripDescriptorCache#getCandidates(String, long)}
+   * @param previous the trip the vehicle was last assigned, or null
+   * @param direction the direction the vehicle reports (such as "NorthBound"),
+   * or null
+   * @param destination the destination the vehicle reports, or null
+   * @return the index of the best candidate, or -1 if there are none
+   */
+  public static int select(TripCandidate[] candidates, ResolvedTrip previous,
+          String direction, String destination) {
+    if (candidates.length <= 1) {
+      return candidates.length - 1;
+    }
+
+    double bearing = directionBearing(direction);
+    String normalizedDestination = normalizeDestination(destination);
+    int best = -1;
+    long bestScore = Long.MIN_VALUE;
+
+    for (int i = 0; i < candidates.length; i++) {
+      long score = score(candidates[i], previous, bearing,
+              normalizedDestination);
+
+      if (score > bestScore) {
+        best = i;
+        bestScore = score;
+      }
+    }
+
+    return best;
+  }
+
+  private static long score(TripCandidate candidate, ResolvedTrip previous,
+          double bearing, String destination) {
+    int layover = candidate.getLayover();
+    long nearness = Integer.MAX_VALUE - Math.abs((long) layover);
+
+    return ((long) (destinationAgreement(candidate.getDestination(),
+            destination) + 1) << DESTINATION_SHIFT)
+            | ((long) (directionAgreement(candidate.getBearing(), bearing) + 1)
+            << DIRECTION_SHIFT)
+            | ((layover == 0) ? 1L << SCHEDULED_SHIFT : 0)
+            | (isSameTrip(candidate.getTrip(), previous)
+                    ? 1L << PREVIOUS_SHIFT : 0)
+            | (nearness << NEARNESS_SHIFT)
+            | ((layover >= 0) ? 1 : 0);
+  }
+
+  /**
+   * @return 1 if the headsign and destination agree, -1 if they differ, and 0
+   * if either is unknown
+   */
+  static int destinationAgreement(String headsign, String destination) {
+    if (headsign.isEmpty() || destination.isEmpty()) {
+      return 0;
+    }
+
+    return (headsign.contains(destination) || destination.contains(headsign))
+            ? 1 : -1;
+  }
+
+  /**
+   * @return 1 if the bearings are within 60 degrees of each other, -1 if they
+   * are more than 120 degrees apart, and 0 otherwise or if either is unknown
+   */
+  static int directionAgreement(double tripBearing, double bearing) {
+    if (Double.isNaN(tripBearing) || Double.isNaN(bearing)) {
+      return 0;
+    }
+
+    double difference = Math.abs(tripBearing - bearing) % 360;
+
+    if (difference > 180) {
+      difference = 360 - difference;
+    }
+
+    if (difference <= DIRECTION_AGREES) {
+      return 1;
+    }
+
+    return (difference > DIRECTION_DISAGREES) ? -1 : 0;
+  }
+
+  private static boolean isSameTrip(ResolvedTrip trip, ResolvedTrip previous) {
+    return previous != null
+            && trip.getDescriptor().getTripId().equals(
+                    previous.getDescriptor().getTripId())
+            && trip.getDescriptor().getStartDate().equals(
+                    previous.getDescriptor().getStartDate());
+  }
+
+  /**
+   * @param direction a TransitView direction, such as "NorthBound"
+   * @return the compass bearing of the direction, in degrees; NaN if it has
+   * none (as for "LOOP")
+   */
+  static double directionBearing(String direction) {
+    if (direction == null) {
+      return Double.NaN;
+    }
+
+    String d = direction.toLowerCase(Locale.US);
+
+    if (d.startsWith("north")) {
+      return 0;
+    } else if (d.startsWith("east")) {
+      return 90;
+    } else if (d.startsWith("south")) {
+      return 180;
+    } else if (d.startsWith("west")) {
+      return 270;
+    }
+    return Double.NaN;
+  }
+
+  /**
+   * @return the destination in lower case with everything but letters and
+   * digits removed, so that headsigns and reported destinations differing
+   * only in case, spacing or punctuation agree; empty if it is null
+   */
+  public static String normalizeDestination(String destination) {
+    if (destination == null) {
+      return "";
+    }
+
+    StringBuilder sb = new StringBuilder(destination.length());
+
+    for (int i = 0; i < destination.length(); i++) {
+      char c = destination.charAt(i);
+
+      if (Character.isLetterOrDigit(c)) {
+        sb.append(Character.toLowerCase(c));
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.kurtraschke.septa.gtfsrealtime.services.StopGridIndex;
+
+/**
+ * Screens upstream vehicle positions before they are published, and derives
+ * bearing and speed from consecutive accepted positions of each vehicle.
+ *
+ * A position is rejected if it is missing (0,0 or out of range), if it lies
+ * outside the service area, or if reaching it from the vehicle's last
+ * accepted position would have required an implausible speed. A vehicle that
+ * keeps reporting from somewhere unexpected is believed after a few polls, so
+ * that one bad fix cannot pin it in place.
+ *
+ * Each vehicle's track is kept in its {@link VehicleState}. Safe for
+ * concurrent use; a vehicle is only ever processed by one worker at a time,
+ * and checking a position allocates nothing.
+ *
+ * @author kurt
+ */
+public class VehiclePositionFilter {
+
+  public enum Verdict {
+
+    ACCEPTED, NO_FIX, OUT_OF_SERVICE_AREA, IMPLAUSIBLE_JUMP
+  }
+
+  private static final double EARTH_RADIUS = 6371008.8;
+
+  /**
+   * Allowance for GPS error when judging a jump, in meters.
+   */
+  private static final double DISTANCE_SLACK = 250;
+
+  /**
+   * Allowance for the timing of upstream reports, which have a resolution of
+   * a minute, in seconds.
+   */
+  private static final long TIME_SLACK = 60;
+
+  /**
+   * Smallest movement, in meters, from which a bearing is derived.
+   */
+  private static final double MIN_MOVEMENT = 15;
+
+  private static final int MAX_CONSECUTIVE_JUMPS = 3;
+
+  private final double _maxSpeed;
+  private final boolean _deriveMotion;
+
+  /**
+   * @param maxSpeed the highest plausible speed of a vehicle, in meters per
+   * second
+   * @param deriveMotion whether to fill in bearing and speed from consecutive
+   * positions
+   */
+  public VehiclePositionFilter(double maxSpeed, boolean deriveMotion) {
+    _maxSpeed = maxSpeed;
+    _deriveMotion = deriveMotion;
+  }
+
+  /**
+   * Check a vehicle's reported position, and if it is accepted, fill it in on
+   * the given builder.
+   *
+   * @param vehicle the state holding the vehicle's track
+   * @param lat
+   * @param lon
+   * @param time the time of the report, in epoch seconds
+   * @param serviceArea
+   * @param position the builder to fill in
+   * @return the verdict; the builder is untouched unless the position was
+   * accepted
+   */
+  public Verdict filter(VehicleState vehicle, double lat, double lon,
+          long time, StopGridIndex serviceArea, Position.Builder position) {
+    if (Double.isNaN(lat) || Double.isNaN(lon) || Math.abs(lat) > 90
+            || Math.abs(lon) > 180 || (lat == 0 && lon == 0)) {
+      return Verdict.NO_FIX;
+    }
+
+    if (!serviceArea.isInServiceArea(lat, lon)) {
+      return Verdict.OUT_OF_SERVICE_AREA;
+    }
+
+    synchronized (vehicle) {
+      if (Double.isNaN(vehicle.lat)) {
+        vehicle.lat = lat;
+        vehicle.lon = lon;
+        vehicle.time = time;
+
+        position.setLatitude((float) lat);
+        position.setLongitude((float) lon);
+        return Verdict.ACCEPTED;
+      }
+
+      long elapsed = Math.max(0, time - vehicle.time);
+      double distance = distance(vehicle.lat, vehicle.lon, lat, lon);
+
+      boolean jump = distance
+              > _maxSpeed * (elapsed + TIME_SLACK) + DISTANCE_SLACK;
+
+      if (jump && vehicle.jumps < MAX_CONSECUTIVE_JUMPS) {
+        vehicle.jumps++;
+        return Verdict.IMPLAUSIBLE_JUMP;
+      }
+
+      if (jump) {
+        /* The vehicle has persistently reported from its new position; start
+         its track afresh there. */
+        vehicle.bearing = Float.NaN;
+        vehicle.speed = Float.NaN;
+        vehicle.lat = lat;
+        vehicle.lon = lon;
+        vehicle.time = time;
+      } else if (elapsed > 0) {
+        if (distance >= MIN_MOVEMENT) {
+          vehicle.bearing = (float) bearing(vehicle.lat, vehicle.lon, lat, lon);
+        }
+        vehicle.speed = (float) (distance / elapsed);
+        vehicle.lat = lat;
+        vehicle.lon = lon;
+        vehicle.time = time;
+      }
+      vehicle.jumps = 0;
+
+      position.setLatitude((float) lat);
+      position.setLongitude((float) lon);
+
+      if (_deriveMotion) {
+        if (!Float.isNaN(vehicle.bearing)) {
+          position.setBearing(vehicle.bearing);
+        }
+        if (!Float.isNaN(vehicle.speed)) {
+          position.setSpeed(vehicle.speed);
+        }
+      }
+      return Verdict.ACCEPTED;
+    }
+  }
+
+  /**
+   * @return the great-circle distance between two points, in meters
+   */
+  static double distance(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+            * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+    return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  /**
+   * @return the initial bearing from the first point to the second, in
+   * degrees clockwise from true north
+   */
+  static double bearing(double lat1, double lon1, double lat2, double lon2) {
+    double phi1 = Math.toRadians(lat1);
+    double phi2 = Math.toRadians(lat2);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double y = Math.sin(dLon) * Math.cos(phi2);
+    double x = Math.cos(phi1) * Math.sin(phi2)
+            - Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLon);
+
+    return (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+
+/**
+ * What the provider remembers about one vehicle between polls: its position
+ * track, the trip it was last assigned, the offset or lateness it last
+ * reported, the entities last published for it, and when it was first seen.
+ *
+ * A vehicle is only processed by one worker at a time. The track is guarded
+ * by the state's own monitor (see {@link VehiclePositionFilter}); the trip
+ * assignment is replaced as a whole.
+ *
+ * @author kurt
+ */
+public class VehicleState {
+
+  private final String _vehicleId;
+  private final long _firstSeen;
+
+  private volatile Assignment _assignment;
+  private volatile int _offset;
+  private volatile FeedEntity _tripUpdate;
+  private volatile FeedEntity _vehiclePosition;
+
+  /* The last accepted position and the motion derived from it. */
+  double lat = Double.NaN;
+  double lon = Double.NaN;
+  long time;
+  float bearing = Float.NaN;
+  float speed = Float.NaN;
+  int jumps;
+
+  /**
+   * @param vehicleId
+   * @param firstSeen in epoch seconds
+   */
+  public VehicleState(String vehicleId, long firstSeen) {
+    _vehicleId = vehicleId;
+    _firstSeen = firstSeen;
+  }
+
+  public String getVehicleId() {
+    return _vehicleId;
+  }
+
+  /**
+   * @return when the vehicle was first seen, in epoch seconds
+   */
+  public long getFirstSeen() {
+    return _firstSeen;
+  }
+
+  /**
+   * @return the trip the vehicle was last assigned, or null
+   */
+  public ResolvedTrip getAssignedTrip() {
+    Assignment a = _assignment;
+
+    return (a != null) ? a.trip : null;
+  }
+
+  /**
+   * The trip the vehicle was last assigned, if it can be assumed to still be
+   * running it: the vehicle reports the same block and destination as when it
+   * was assigned, the trip comes from the same schedule, and the trip has not
+   * yet been scheduled to end.
+   *
+   * @param source the trip cache of the lane's current schedule
+   * @param blockId
+   * @param destination
+   * @param time the time at which the block was active, in epoch seconds
+   * @return the trip, or null if a block search is needed
+   */
+  public ResolvedTrip getContinuingTrip(TripDescriptorCache source,
+          String blockId, String destination, long time) {
+    Assignment a = _assignment;
+
+    if (a == null || a.source != source || time > a.trip.getEndTime()
+            || !equal(a.blockId, blockId)
+            || !equal(a.destination, destination)) {
+      return null;
+    }
+
+    return a.trip;
+  }
+
+  /**
+   * Record the trip the vehicle was resolved to.
+   *
+   * @param source the trip cache the trip was resolved through
+   * @param blockId
+   * @param destination the destination the vehicle reported
+   * @param trip
+   */
+  public void assignTrip(TripDescriptorCache source, String blockId,
+          String destination, ResolvedTrip trip) {
+    Assignment a = _assignment;
+
+    if (a != null && a.trip == trip && equal(a.destination, destination)) {
+      return;
+    }
+
+    _assignment = new Assignment(source, blockId, destination, trip);
+  }
+
+  /**
+   * @return the offset (for a bus) or lateness (for a train) the vehicle last
+   * reported, in minutes
+   */
+  public int getOffset() {
+    return _offset;
+  }
+
+  public void setOffset(int offset) {
+    _offset = offset;
+  }
+
+  /**
+   * @return the trip update entity last published for the vehicle, or null
+   */
+  public FeedEntity getTripUpdate() {
+    return _tripUpdate;
+  }
+
+  public void setTripUpdate(FeedEntity tripUpdate) {
+    _tripUpdate = tripUpdate;
+  }
+
+  /**
+   * @return the vehicle position entity last published for the vehicle, or
+   * null
+   */
+  public FeedEntity getVehiclePosition() {
+    return _vehiclePosition;
+  }
+
+  public void setVehiclePosition(FeedEntity vehiclePosition) {
+    _vehiclePosition = vehiclePosition;
+  }
+
+  private static boolean equal(String a, String b) {
+    return (a == null) ? b == null : a.equals(b);
+  }
+
+  private static final class Assignment {
+
+    final TripDescriptorCache source;
+    final String blockId;
+    final String destination;
+    final ResolvedTrip trip;
+
+    Assignment(TripDescriptorCache source, String blockId,
+            String destination, ResolvedTrip trip) {
+      this.source = source;
+      this.blockId = blockId;
+      this.destination = destination;
+      this.trip = trip;
+    }
+  }
+}
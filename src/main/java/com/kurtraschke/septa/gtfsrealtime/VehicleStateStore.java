@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link VehicleState} of every live vehicle, in an open-addressing hash
+ * table keyed by entity ID.
+ *
+ * Keys and states are held in two parallel arrays probed linearly, which
+ * keeps a lookup to a hash, a few array reads and a string comparison, and
+ * allocates nothing for a known vehicle. Removal shifts the rest of the probe
+ * sequence back rather than leaving tombstones, so the table never needs
+ * cleaning up as vehicles come and go. Operations hold the table's monitor
+ * only for the duration of the probe.
+ *
+ * @author kurt
+ */
+public class VehicleStateStore {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private String[] _keys;
+  private VehicleState[] _states;
+  private int _size;
+
+  /**
+   * @param expectedSize the number of vehicles expected to be live at once
+   */
+  public VehicleStateStore(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+
+    _keys = new String[capacity];
+    _states = new VehicleState[capacity];
+  }
+
+  /**
+   * @return the vehicle's state, or null if it is not known
+   */
+  public synchronized VehicleState get(String entityId) {
+    int slot = find(_keys, entityId);
+
+    return (_keys[slot] != null) ? _states[slot] : null;
+  }
+
+  /**
+   * @param entityId
+   * @param now in epoch seconds; the first-seen time of a new vehicle
+   * @return the vehicle's state, created if it is not yet known
+   */
+  public synchronized VehicleState getOrCreate(String entityId, long now) {
+    int slot = find(_keys, entityId);
+
+    if (_keys[slot] != null) {
+      return _states[slot];
+    }
+
+    VehicleState state = new VehicleState(entityId, now);
+    _keys[slot] = entityId;
+    _states[slot] = state;
+
+    if (++_size * 2 > _keys.length) {
+      resize(_keys.length * 2);
+    }
+    return state;
+  }
+
+  /**
+   * Add a vehicle's state, replacing any existing state for the same vehicle.
+   *
+   * @param state
+   */
+  public synchronized void put(VehicleState state) {
+    int slot = find(_keys, state.getVehicleId());
+
+    if (_keys[slot] == null) {
+      _keys[slot] = state.getVehicleId();
+      _size++;
+    }
+    _states[slot] = state;
+
+    if (_size * 2 > _keys.length) {
+      resize(_keys.length * 2);
+    }
+  }
+
+  /**
+   * @return the removed state, or null if the vehicle was not known
+   */
+  public synchronized VehicleState remove(String entityId) {
+    int slot = find(_keys, entityId);
+
+    if (_keys[slot] == null) {
+      return null;
+    }
+
+    VehicleState removed = _states[slot];
+    int mask = _keys.length - 1;
+    int hole = slot;
+
+    /* Shift back any later entry of the probe sequence whose home slot does
+     not lie cyclically between the hole and the entry itself. */
+    for (int i = (hole + 1) & mask; _keys[i] != null; i = (i + 1) & mask) {
+      int home = hash(_keys[i]) & mask;
+
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        _keys[hole] = _keys[i];
+        _states[hole] = _states[i];
+        hole = i;
+      }
+    }
+
+    _keys[hole] = null;
+    _states[hole] = null;
+    _size--;
+    return removed;
+  }
+
+  /**
+   * @return a snapshot of every vehicle's state
+   */
+  public synchronized List<VehicleState> values() {
+    List<VehicleState> values = new ArrayList<>(_size);
+
+    for (VehicleState state : _states) {
+      if (state != null) {
+        values.add(state);
+      }
+    }
+    return values;
+  }
+
+  public synchronized int size() {
+    return _size;
+  }
+
+  private void resize(int capacity) {
+    String[] keys = new String[capacity];
+    VehicleState[] states = new VehicleState[capacity];
+
+    for (int i = 0; i < _keys.length; i++) {
+      if (_keys[i] != null) {
+        int slot = find(keys, _keys[i]);
+        keys[slot] = _keys[i];
+        states[slot] = _states[i];
+      }
+    }
+
+    _keys = keys;
+    _states = states;
+  }
+
+  /**
+   * @return the slot holding the key, or the empty slot ending its probe
+   * sequence
+   */
+  private static int find(String[] keys, String key) {
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+
+    while (keys[i] != null && !keys[i].equals(key)) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private static int hash(String key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.feed;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import javax.inject.Named;
+
+/**
+ * Writes a GTFS-realtime feed to a file, in place of
+ * {@link org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeFileWriter}.
+ *
+ * The file is rewritten only when the feed's entities change; a new header
+ * timestamp alone does not count as a change. Each version is written to a
+ * temporary file in the same directory with a single channel write, forced to
+ * disk, and then renamed over the previous version, so readers only ever see
+ * complete files. Optionally, the last few versions are kept alongside it as
+ * path.0, path.1, and so on, in rotation.
+ *
+ * @author kurt
+ */
+public class FeedFilePublisher implements GtfsRealtimeIncrementalListener {
+
+  private static final Logger _log = LoggerFactory.getLogger(FeedFilePublisher.class);
+
+  private GtfsRealtimeSource _source;
+  private File _path;
+  private HashCode _lastContentHash;
+  private long _generation;
+
+  @Inject(optional = true)
+  @Named("feedFile.history")
+  private int _history = 0;
+
+  public void setPath(File path) {
+    _path = path;
+  }
+
+  public void setSource(GtfsRealtimeSource source) {
+    _source = source;
+    publish(source.getFeed());
+    source.addIncrementalListener(this);
+  }
+
+  @Override
+  public void handleNewFeed(FeedMessage feed) {
+    publish(_source.getFeed());
+  }
+
+  private synchronized void publish(FeedMessage feed) {
+    byte[] body = feed.toByteArray();
+    HashCode contentHash = contentHash(feed.getHeader(), body);
+
+    if (contentHash.equals(_lastContentHash)) {
+      return;
+    }
+
+    Path target = _path.toPath().toAbsolutePath();
+
+    try {
+      write(target, ByteBuffer.wrap(body));
+    } catch (IOException ex) {
+      _log.warn("Exception while writing feed to " + _path, ex);
+      return;
+    }
+
+    _lastContentHash = contentHash;
+
+    if (_history > 0) {
+      try {
+        keepHistory(target);
+      } catch (IOException ex) {
+        _log.warn("Exception while keeping history of " + _path, ex);
+      }
+    }
+    _generation++;
+  }
+
+  private static void write(Path target, ByteBuffer body) throws IOException {
+    Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+
+    try {
+      try (FileChannel channel = FileChannel.open(tmp,
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        while (body.hasRemaining()) {
+          channel.write(body);
+        }
+        channel.force(true);
+      }
+
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+
+    forceDirectory(target.getParent());
+  }
+
+  /**
+   * Flush the directory entry of a renamed file to disk, so that the rename
+   * itself survives a crash. Platforms that cannot open a directory for
+   * reading are left to flush it in their own time.
+   */
+  private static void forceDirectory(Path dir) throws IOException {
+    FileChannel channel;
+
+    try {
+      channel = FileChannel.open(dir, StandardOpenOption.READ);
+    } catch (IOException ex) {
+      return;
+    }
+
+    try {
+      channel.force(true);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Link (or, where links are unsupported, copy) the newly written file into
+   * the next slot of the history ring.
+   */
+  private void keepHistory(Path target) throws IOException {
+    Path slot = target.resolveSibling(target.getFileName() + "."
+            + (_generation % _history));
+
+    Files.deleteIfExists(slot);
+
+    try {
+      Files.createLink(slot, target);
+    } catch (IOException | UnsupportedOperationException ex) {
+      Files.copy(target, slot, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * The header is field 1 of the feed message, so it is encoded first and
+   * everything after it in the body is the feed's entities. Only the small
+   * header is re-encoded, without its timestamp.
+   *
+   * @param header the feed's header
+   * @param body the encoded feed
+   * @return a hash of the feed with its header timestamp cleared
+   */
+  private static HashCode contentHash(FeedHeader header, byte[] body) {
+    int headerSize = CodedOutputStream.computeMessageSize(
+            FeedMessage.HEADER_FIELD_NUMBER, header);
+
+    return Hashing.murmur3_128().newHasher()
+            .putBytes(header.toBuilder().clearTimestamp().build().toByteArray())
+            .putBytes(body, headerSize, body.length - headerSize)
+            .hash();
+  }
+}
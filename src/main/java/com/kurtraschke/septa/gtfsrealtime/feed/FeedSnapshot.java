@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.feed;
+
+import com.google.common.hash.Hashing;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An immutable, pre-encoded copy of a GTFS-realtime feed.
+ *
+ * The protocol buffer encoding is built once, when the snapshot is taken; the
+ * gzip encoding and the debug text are built the first time they are asked
+ * for. Bodies are held as byte arrays that are never modified or handed out;
+ * each is written to a client with a single {@link OutputStream#write(byte[])}
+ * call, so one snapshot can be written to any number of clients concurrently.
+ * Each representation has its own strong entity tag, derived
+ * from a hash of the protocol buffer encoding.
+ *
+ * @author kurt
+ */
+public class FeedSnapshot {
+
+  private final FeedMessage _feed;
+  private final byte[] _body;
+  private final String _hash;
+  private final long _lastModified;
+
+  private volatile byte[] _gzipBody;
+  private volatile String _debugText;
+
+  private FeedSnapshot(FeedMessage feed, byte[] body, long lastModified) {
+    _feed = feed;
+    _body = body;
+    _hash = Hashing.murmur3_128().hashBytes(body).toString();
+    _lastModified = lastModified;
+  }
+
+  /**
+   * @param feed
+   * @return a snapshot of the feed, last modified at the feed header's
+   * timestamp, or now if the header has none
+   */
+  public static FeedSnapshot of(FeedMessage feed) {
+    long lastModified = feed.getHeader().hasTimestamp()
+            ? feed.getHeader().getTimestamp() * 1000L
+            : System.currentTimeMillis();
+
+    return new FeedSnapshot(feed, feed.toByteArray(), lastModified);
+  }
+
+  /**
+   * @return the length of the protocol buffer encoding of the feed
+   */
+  public int getBodyLength() {
+    return _body.length;
+  }
+
+  /**
+   * Write the protocol buffer encoding of the feed.
+   */
+  public void writeBody(OutputStream out) throws IOException {
+    out.write(_body);
+  }
+
+  /**
+   * @return the length of the gzip-compressed protocol buffer encoding of the
+   * feed
+   */
+  public int getGzipBodyLength() {
+    return gzipBody().length;
+  }
+
+  /**
+   * Write the gzip-compressed protocol buffer encoding of the feed.
+   */
+  public void writeGzipBody(OutputStream out) throws IOException {
+    out.write(gzipBody());
+  }
+
+  /**
+   * @return the feed in protocol buffer text format
+   */
+  public String getDebugText() {
+    String debugText = _debugText;
+
+    if (debugText == null) {
+      debugText = _feed.toString();
+      _debugText = debugText;
+    }
+    return debugText;
+  }
+
+  /**
+   * @return the strong entity tag of {@link #writeBody}, including the
+   * surrounding quotes
+   */
+  public String getEtag() {
+    return "\"" + _hash + "\"";
+  }
+
+  /**
+   * @return the strong entity tag of {@link #writeGzipBody}, including the
+   * surrounding quotes
+   */
+  public String getGzipEtag() {
+    return "\"" + _hash + "-gzip\"";
+  }
+
+  /**
+   * @return the strong entity tag of {@link #getDebugText()}, including the
+   * surrounding quotes
+   */
+  public String getDebugTextEtag() {
+    return "\"" + _hash + "-text\"";
+  }
+
+  /**
+   * @return the last-modified time, in epoch milliseconds
+   */
+  public long getLastModified() {
+    return _lastModified;
+  }
+
+  private byte[] gzipBody() {
+    byte[] gzipBody = _gzipBody;
+
+    if (gzipBody == null) {
+      gzipBody = gzip(_body);
+      _gzipBody = gzipBody;
+    }
+    return gzipBody;
+  }
+
+  private static byte[] gzip(byte[] bytes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.feed;
+
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeIncrementalListener;
+import org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeSource;
+import org.onebusaway.guice.jetty_exporter.ServletSource;
+
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+import java.io.IOException;
+import java.net.URL;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves a GTFS-realtime feed from a pre-encoded {@link FeedSnapshot}, in
+ * place of {@link org.onebusaway.gtfs_realtime.exporter.GtfsRealtimeServlet}.
+ *
+ * The servlet listens for updates to its source, and takes a new snapshot
+ * once per update; the new snapshot replaces the current one with a single
+ * reference swap, while requests already in flight finish writing the old
+ * one. Requests never serialize the feed. Conditional requests (If-None-Match
+ * and If-Modified-Since) are answered with 304 Not Modified, clients sending
+ * Accept-Encoding: gzip receive the gzip encoding, and ?debug returns the
+ * feed as text; each of the three representations has its own entity tag.
+ *
+ * @author kurt
+ */
+public class FeedSnapshotServlet extends HttpServlet implements
+        ServletSource, GtfsRealtimeIncrementalListener {
+
+  private static final long serialVersionUID = 1L;
+
+  private transient GtfsRealtimeSource _source;
+  private transient volatile FeedSnapshot _snapshot;
+  private URL _url;
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  public void setSource(GtfsRealtimeSource source) {
+    _source = source;
+    _snapshot = FeedSnapshot.of(source.getFeed());
+    source.addIncrementalListener(this);
+  }
+
+  @Override
+  public URL getUrl() {
+    return _url;
+  }
+
+  @Override
+  public Servlet getServlet() {
+    return this;
+  }
+
+  @Override
+  public void handleNewFeed(FeedMessage feed) {
+    _snapshot = FeedSnapshot.of(_source.getFeed());
+  }
+
+  public FeedSnapshot getSnapshot() {
+    return _snapshot;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+          throws ServletException, IOException {
+    FeedSnapshot snapshot = _snapshot;
+
+    if (snapshot == null) {
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+
+    boolean debug = req.getParameter("debug") != null;
+    boolean gzip = !debug && acceptsGzip(req);
+    String etag = debug ? snapshot.getDebugTextEtag()
+            : gzip ? snapshot.getGzipEtag() : snapshot.getEtag();
+
+    resp.setHeader("ETag", etag);
+    resp.setDateHeader("Last-Modified", snapshot.getLastModified());
+    resp.setHeader("Vary", "Accept-Encoding");
+
+    if (isNotModified(req, etag, snapshot.getLastModified())) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    if (debug) {
+      resp.setContentType("text/plain");
+      resp.setCharacterEncoding("UTF-8");
+      resp.getWriter().write(snapshot.getDebugText());
+      return;
+    }
+
+    resp.setContentType("application/x-google-protobuf");
+
+    if (gzip) {
+      resp.setHeader("Content-Encoding", "gzip");
+      resp.setContentLength(snapshot.getGzipBodyLength());
+      snapshot.writeGzipBody(resp.getOutputStream());
+    } else {
+      resp.setContentLength(snapshot.getBodyLength());
+      snapshot.writeBody(resp.getOutputStream());
+    }
+  }
+
+  private static boolean isNotModified(HttpServletRequest req, String etag,
+          long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        String trimmed = candidate.trim();
+
+        if (trimmed.equals("*") || trimmed.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    try {
+      long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+
+      /* HTTP dates have one-second resolution. */
+      return ifModifiedSince != -1
+              && ifModifiedSince >= lastModified / 1000 * 1000;
+    } catch (IllegalArgumentException ex) {
+      return false;
+    }
+  }
+
+  private static boolean acceptsGzip(HttpServletRequest req) {
+    String acceptEncoding = req.getHeader("Accept-Encoding");
+    return acceptEncoding != null && acceptEncoding.contains("gzip");
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.metrics;
+
+import org.onebusaway.guice.jetty_exporter.ServletSource;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the current values of {@link SeptaRealtimeMetrics} as JSON, alongside
+ * the GTFS-realtime servlets.
+ *
+ * Timer values are in milliseconds, and meter rates in events per second.
+ * Gauges with no finite value, such as a ratio with nothing to divide by, are
+ * written as null.
+ *
+ * @author kurt
+ */
+public class MetricsServlet extends HttpServlet implements ServletSource {
+
+  private static final long serialVersionUID = 1L;
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private transient SeptaRealtimeMetrics _metrics;
+  private URL _url;
+
+  @Inject
+  public void setMetrics(SeptaRealtimeMetrics metrics) {
+    _metrics = metrics;
+  }
+
+  public void setUrl(URL url) {
+    _url = url;
+  }
+
+  @Override
+  public URL getUrl() {
+    return _url;
+  }
+
+  @Override
+  public Servlet getServlet() {
+    return this;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+          throws ServletException, IOException {
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+
+    write(_metrics.getRegistry(), resp.getWriter());
+  }
+
+  @SuppressWarnings("rawtypes")
+  static void write(MetricRegistry registry, Writer out) throws IOException {
+    try (JsonWriter writer = new JsonWriter(out)) {
+      writer.setIndent("  ");
+      writer.beginObject();
+
+      writer.name("gauges").beginObject();
+      for (Map.Entry<String, Gauge> e : registry.getGauges().entrySet()) {
+        Object value = e.getValue().getValue();
+
+        writer.name(e.getKey());
+        if (value instanceof Number) {
+          writeNumber(writer, (Number) value);
+        } else {
+          writer.value(String.valueOf(value));
+        }
+      }
+      writer.endObject();
+
+      writer.name("counters").beginObject();
+      for (Map.Entry<String, Counter> e : registry.getCounters().entrySet()) {
+        writer.name(e.getKey()).value(e.getValue().getCount());
+      }
+      writer.endObject();
+
+      writer.name("histograms").beginObject();
+      for (Map.Entry<String, Histogram> e : registry.getHistograms().entrySet()) {
+        writer.name(e.getKey());
+        writeSnapshot(writer, e.getValue().getCount(),
+                e.getValue().getSnapshot(), 1);
+      }
+      writer.endObject();
+
+      writer.name("meters").beginObject();
+      for (Map.Entry<String, Meter> e : registry.getMeters().entrySet()) {
+        Meter meter = e.getValue();
+
+        writer.name(e.getKey()).beginObject();
+        writer.name("count").value(meter.getCount());
+        writer.name("m1").value(meter.getOneMinuteRate());
+        writer.name("m5").value(meter.getFiveMinuteRate());
+        writer.name("m15").value(meter.getFifteenMinuteRate());
+        writer.endObject();
+      }
+      writer.endObject();
+
+      writer.name("timers").beginObject();
+      for (Map.Entry<String, Timer> e : registry.getTimers().entrySet()) {
+        writer.name(e.getKey());
+        writeSnapshot(writer, e.getValue().getCount(),
+                e.getValue().getSnapshot(), NANOS_PER_MILLI);
+      }
+      writer.endObject();
+
+      writer.endObject();
+    }
+  }
+
+  /**
+   * JsonWriter rejects NaN and infinite values outright, which would cut the
+   * response short at the first such gauge.
+   */
+  private static void writeNumber(JsonWriter writer, Number value)
+          throws IOException {
+    if ((value instanceof Double || value instanceof Float)
+            && (Double.isNaN(value.doubleValue())
+            || Double.isInfinite(value.doubleValue()))) {
+      writer.nullValue();
+    } else {
+      writer.value(value);
+    }
+  }
+
+  private static void writeSnapshot(JsonWriter writer, long count,
+          Snapshot snapshot, double scale) throws IOException {
+    writer.beginObject();
+    writer.name("count").value(count);
+    writer.name("mean").value(snapshot.getMean() / scale);
+    writer.name("p50").value(snapshot.getMedian() / scale);
+    writer.name("p95").value(snapshot.get95thPercentile() / scale);
+    writer.name("p99").value(snapshot.get99thPercentile() / scale);
+    writer.name("max").value(snapshot.getMax() / scale);
+    writer.endObject();
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
+import javax.inject.Singleton;
+
+/**
+ * Instrumentation for the refresh hot paths, grouped by feed lane.
+ *
+ * @author kurt
+ */
+@Singleton
+public class SeptaRealtimeMetrics {
+
+  public static final String BUS = "bus";
+  public static final String RAIL = "rail";
+
+  private final MetricRegistry _registry = new MetricRegistry();
+  private final LaneMetrics _bus = new LaneMetrics(BUS);
+  private final LaneMetrics _rail = new LaneMetrics(RAIL);
+  private final Counter _entitiesExpired = _registry.counter("entities.expired");
+
+  public MetricRegistry getRegistry() {
+    return _registry;
+  }
+
+  public LaneMetrics getBusMetrics() {
+    return _bus;
+  }
+
+  public LaneMetrics getRailMetrics() {
+    return _rail;
+  }
+
+  public Counter getEntitiesExpired() {
+    return _entitiesExpired;
+  }
+
+  public class LaneMetrics {
+
+    private final Timer _fetch;
+    private final Histogram _fetchBytes;
+    private final Counter _fetchUnchanged;
+    private final Timer _parse;
+    private final Meter _decoded;
+    private final Meter _resolved;
+    private final Counter _cyclesSuperseded;
+    private final Counter _vehiclesSuperseded;
+    private final Timer _blockMapping;
+    private final Counter _blockMappingFailures;
+    private final Meter _blockMappingResolved;
+    private final Counter _blockMappingAmbiguous;
+    private final Counter _blockMappingLayover;
+    private final Counter _blockMappingContinued;
+    private final Counter _entitiesPushed;
+    private final Counter _entitiesUnchanged;
+    private final Counter _positionsMissing;
+    private final Counter _positionsOutOfServiceArea;
+    private final Counter _positionsImplausible;
+    private final Counter _nextStopUnmatched;
+    private final Counter _vehiclesOffTrip;
+    private final Timer _cycle;
+    private final Timer _scheduleReload;
+    private final Histogram _scheduleReloadHeapDelta;
+    private final Counter _scheduleReloadFailures;
+
+    private LaneMetrics(String lane) {
+      _fetch = _registry.timer(MetricRegistry.name(lane, "fetch"));
+      _fetchBytes = _registry.histogram(MetricRegistry.name(lane, "fetch", "bytes"));
+      _fetchUnchanged = _registry.counter(MetricRegistry.name(lane, "fetch", "unchanged"));
+      _parse = _registry.timer(MetricRegistry.name(lane, "parse"));
+      _decoded = _registry.meter(MetricRegistry.name(lane, "pipeline", "decoded"));
+      _resolved = _registry.meter(MetricRegistry.name(lane, "pipeline", "resolved"));
+      _cyclesSuperseded = _registry.counter(MetricRegistry.name(lane, "pipeline", "cyclesSuperseded"));
+      _vehiclesSuperseded = _registry.counter(MetricRegistry.name(lane, "pipeline", "vehiclesSuperseded"));
+      _blockMapping = _registry.timer(MetricRegistry.name(lane, "blockMapping"));
+      _blockMappingFailures = _registry.counter(MetricRegistry.name(lane, "blockMapping", "failures"));
+      _blockMappingResolved = _registry.meter(MetricRegistry.name(lane, "blockMapping", "resolved"));
+      _blockMappingAmbiguous = _registry.counter(MetricRegistry.name(lane, "blockMapping", "ambiguous"));
+      _blockMappingLayover = _registry.counter(MetricRegistry.name(lane, "blockMapping", "layover"));
+      _blockMappingContinued = _registry.counter(MetricRegistry.name(lane, "blockMapping", "continued"));
+      _entitiesPushed = _registry.counter(MetricRegistry.name(lane, "entities", "pushed"));
+      _entitiesUnchanged = _registry.counter(MetricRegistry.name(lane, "entities", "unchanged"));
+      _positionsMissing = _registry.counter(MetricRegistry.name(lane, "positions", "missing"));
+      _positionsOutOfServiceArea = _registry.counter(MetricRegistry.name(lane, "positions", "outOfServiceArea"));
+      _positionsImplausible = _registry.counter(MetricRegistry.name(lane, "positions", "implausible"));
+      _nextStopUnmatched = _registry.counter(MetricRegistry.name(lane, "predictions", "nextStopUnmatched"));
+      _vehiclesOffTrip = _registry.counter(MetricRegistry.name(lane, "predictions", "offTrip"));
+      _cycle = _registry.timer(MetricRegistry.name(lane, "cycle"));
+      _scheduleReload = _registry.timer(MetricRegistry.name(lane, "scheduleReload"));
+      _scheduleReloadHeapDelta = _registry.histogram(MetricRegistry.name(lane, "scheduleReload", "heapDelta"));
+      _scheduleReloadFailures = _registry.counter(MetricRegistry.name(lane, "scheduleReload", "failures"));
+
+      _registry.register(MetricRegistry.name(lane, "blockMapping", "resolutionRate"),
+              new RatioGauge() {
+                @Override
+                protected Ratio getRatio() {
+                  return Ratio.of(_blockMappingResolved.getFiveMinuteRate(),
+                          _blockMapping.getFiveMinuteRate());
+                }
+              });
+    }
+
+    /**
+     * @return upstream fetch latency
+     */
+    public Timer getFetch() {
+      return _fetch;
+    }
+
+    /**
+     * @return size of each changed upstream response body
+     */
+    public Histogram getFetchBytes() {
+      return _fetchBytes;
+    }
+
+    /**
+     * @return fetches skipped because the upstream was unchanged
+     */
+    public Counter getFetchUnchanged() {
+      return _fetchUnchanged;
+    }
+
+    public Timer getParse() {
+      return _parse;
+    }
+
+    /**
+     * @return vehicles handed from the decode stage to the resolve stage
+     */
+    public Meter getDecoded() {
+      return _decoded;
+    }
+
+    /**
+     * @return vehicles processed by the resolve stage
+     */
+    public Meter getResolved() {
+      return _resolved;
+    }
+
+    /**
+     * @return refresh cycles still in progress when a newer poll arrived
+     */
+    public Counter getCyclesSuperseded() {
+      return _cyclesSuperseded;
+    }
+
+    /**
+     * @return vehicles left unresolved because a newer poll arrived first
+     */
+    public Counter getVehiclesSuperseded() {
+      return _vehiclesSuperseded;
+    }
+
+    public Timer getBlockMapping() {
+      return _blockMapping;
+    }
+
+    /**
+     * @return vehicles for which no trip could be resolved
+     */
+    public Counter getBlockMappingFailures() {
+      return _blockMappingFailures;
+    }
+
+    /**
+     * @return vehicles resolved to a trip; the blockMapping.resolutionRate
+     * gauge is the share of block mappings, over the last five minutes, that
+     * resolved a trip
+     */
+    public Meter getBlockMappingResolved() {
+      return _blockMappingResolved;
+    }
+
+    /**
+     * @return vehicles resolved to a trip by ranking more than one candidate
+     */
+    public Counter getBlockMappingAmbiguous() {
+      return _blockMappingAmbiguous;
+    }
+
+    /**
+     * @return vehicles resolved to a trip not scheduled to be running, because
+     * it was about to start or had just ended
+     */
+    public Counter getBlockMappingLayover() {
+      return _blockMappingLayover;
+    }
+
+    /**
+     * @return vehicles resolved to the trip they were last assigned, without
+     * a block search
+     */
+    public Counter getBlockMappingContinued() {
+      return _blockMappingContinued;
+    }
+
+    public Counter getEntitiesPushed() {
+      return _entitiesPushed;
+    }
+
+    /**
+     * @return vehicles skipped because their upstream state was unchanged
+     */
+    public Counter getEntitiesUnchanged() {
+      return _entitiesUnchanged;
+    }
+
+    /**
+     * @return positions rejected because the upstream reported none (0,0)
+     */
+    public Counter getPositionsMissing() {
+      return _positionsMissing;
+    }
+
+    /**
+     * @return positions rejected because they lie too far from any stop
+     */
+    public Counter getPositionsOutOfServiceArea() {
+      return _positionsOutOfServiceArea;
+    }
+
+    /**
+     * @return positions rejected because the vehicle could not have reached
+     * them since its last accepted position
+     */
+    public Counter getPositionsImplausible() {
+      return _positionsImplausible;
+    }
+
+    /**
+     * @return predictions made from the start of the trip because the
+     * vehicle's next stop could not be found on it
+     */
+    public Counter getNextStopUnmatched() {
+      return _nextStopUnmatched;
+    }
+
+    /**
+     * @return vehicles left without a trip update because they were too far
+     * from every segment of their trip to be placed on it
+     */
+    public Counter getVehiclesOffTrip() {
+      return _vehiclesOffTrip;
+    }
+
+    /**
+     * @return end-to-end refresh cycle duration
+     */
+    public Timer getCycle() {
+      return _cycle;
+    }
+
+    /**
+     * @return duration of background GTFS reloads
+     */
+    public Timer getScheduleReload() {
+      return _scheduleReload;
+    }
+
+    /**
+     * @return change in used heap across each GTFS reload, in bytes; the
+     * replaced schedule may not have been collected yet
+     */
+    public Histogram getScheduleReloadHeapDelta() {
+      return _scheduleReloadHeapDelta;
+    }
+
+    public Counter getScheduleReloadFailures() {
+      return _scheduleReloadFailures;
+    }
+  }
+}
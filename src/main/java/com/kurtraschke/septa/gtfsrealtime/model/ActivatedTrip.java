@@ -16,8 +16,6 @@
 package com.kurtraschke.septa.gtfsrealtime.model;
 
 import java.util.Objects;
-import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.model.calendar.ServiceDate;
 
 /**
  *
@@ -25,38 +23,92 @@ import org.onebusaway.gtfs.model.calendar.ServiceDate;
  */
 public class ActivatedTrip {
 
-  private final Trip trip;
-  private final ServiceDate serviceDate;
+  private final String tripId;
+  private final String routeId;
+  private final String startDate;
+  private final long serviceDayOrigin;
+  private final int layover;
 
-  public ActivatedTrip(Trip trip, ServiceDate serviceDate) {
-    this.trip = trip;
-    this.serviceDate = serviceDate;
+  /**
+   * @param tripId
+   * @param routeId
+   * @param startDate the service date, as yyyymmdd
+   * @param serviceDayOrigin the service day's time origin (noon minus twelve
+   * hours), in epoch seconds
+   */
+  public ActivatedTrip(String tripId, String routeId, String startDate,
+          long serviceDayOrigin) {
+    this(tripId, routeId, startDate, serviceDayOrigin, 0);
+  }
+
+  /**
+   * @param tripId
+   * @param routeId
+   * @param startDate the service date, as yyyymmdd
+   * @param serviceDayOrigin the service day's time origin (noon minus twelve
+   * hours), in epoch seconds
+   * @param layover see {@link #getLayover()}
+   */
+  public ActivatedTrip(String tripId, String routeId, String startDate,
+          long serviceDayOrigin, int layover) {
+    this.tripId = tripId;
+    this.routeId = routeId;
+    this.startDate = startDate;
+    this.serviceDayOrigin = serviceDayOrigin;
+    this.layover = layover;
+  }
+
+  /**
+   * @return the tripId
+   */
+  public String getTripId() {
+    return tripId;
+  }
+
+  /**
+   * @return the routeId
+   */
+  public String getRouteId() {
+    return routeId;
+  }
+
+  /**
+   * @return the service date, as yyyymmdd
+   */
+  public String getStartDate() {
+    return startDate;
   }
 
   /**
-   * @return the trip
+   * @return the service day's time origin, in epoch seconds; stop times are
+   * relative to it
    */
-  public Trip getTrip() {
-    return trip;
+  public long getServiceDayOrigin() {
+    return serviceDayOrigin;
   }
 
   /**
-   * @return the serviceDate
+   * @return 0 if the trip was scheduled to be running at the time it was
+   * activated for; otherwise the seconds until it was scheduled to start
+   * (positive) or since it was scheduled to end (negative)
    */
-  public ServiceDate getServiceDate() {
-    return serviceDate;
+  public int getLayover() {
+    return layover;
   }
 
   @Override
   public String toString() {
-    return "ActivatedTrip{" + "trip=" + trip + ", serviceDate=" + serviceDate + '}';
+    return "ActivatedTrip{" + "tripId=" + tripId + ", routeId=" + routeId + ", startDate=" + startDate + ", serviceDayOrigin=" + serviceDayOrigin + ", layover=" + layover + '}';
   }
 
   @Override
   public int hashCode() {
     int hash = 3;
-    hash = 89 * hash + Objects.hashCode(this.trip);
-    hash = 89 * hash + Objects.hashCode(this.serviceDate);
+    hash = 89 * hash + Objects.hashCode(this.tripId);
+    hash = 89 * hash + Objects.hashCode(this.routeId);
+    hash = 89 * hash + Objects.hashCode(this.startDate);
+    hash = 89 * hash + (int) (this.serviceDayOrigin ^ (this.serviceDayOrigin >>> 32));
+    hash = 89 * hash + this.layover;
     return hash;
   }
 
@@ -69,10 +121,19 @@ public class ActivatedTrip {
       return false;
     }
     final ActivatedTrip other = (ActivatedTrip) obj;
-    if (!Objects.equals(this.trip, other.trip)) {
+    if (!Objects.equals(this.tripId, other.tripId)) {
+      return false;
+    }
+    if (!Objects.equals(this.routeId, other.routeId)) {
+      return false;
+    }
+    if (!Objects.equals(this.startDate, other.startDate)) {
+      return false;
+    }
+    if (this.serviceDayOrigin != other.serviceDayOrigin) {
       return false;
     }
-    if (!Objects.equals(this.serviceDate, other.serviceDate)) {
+    if (this.layover != other.layover) {
       return false;
     }
     return true;
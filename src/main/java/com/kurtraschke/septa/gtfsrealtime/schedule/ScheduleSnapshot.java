@@ -0,0 +1,781 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.schedule;
+
+import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
+import org.onebusaway.gtfs.model.Agency;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.onebusaway.gtfs.model.Stop;
+import org.onebusaway.gtfs.model.StopTime;
+import org.onebusaway.gtfs.model.Trip;
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.onebusaway.gtfs.services.GtfsRelationalDao;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * Columnar {@link ScheduleStore} holding the subset of a GTFS feed the
+ * provider needs at runtime in primitive arrays.
+ *
+ * Every string ID (trip, route, stop, service and block), trip headsign and
+ * stop name is stored once in a sorted dictionary and referred to elsewhere
+ * by its index in the dictionary.
+ * Trips, stops and blocks are numbered in ID order, so looking a trip or block
+ * up by ID is a pair of binary searches. Stop coordinates are held as integer
+ * microdegrees. The stop times of all trips are held in one set of columns,
+ * grouped by trip in stop sequence order.
+ *
+ * Snapshots are built from a parsed GTFS feed, and can be written to and read
+ * back from a compact binary file, so that the feed need not be parsed again
+ * until it changes. A snapshot always has at least one agency, whose time
+ * zone is used for agency IDs the feed does not know.
+ *
+ * @author kurt
+ */
+public class ScheduleSnapshot implements ScheduleStore {
+
+  private static final int MAGIC = 0x53505441;
+  private static final int VERSION = 5;
+  private static final double MICRODEGREES = 1e6;
+
+  private final byte[] _sourceChecksum;
+  private final int _maxStopTime;
+
+  private final String[] _agencyIds;
+  private final TimeZone[] _agencyTimeZones;
+
+  private final String[] _dictionary;
+
+  private final int[] _serviceIds;
+  /**
+   * Active dates of each service, as yyyymmdd.
+   */
+  private final int[][] _serviceDates;
+
+  private final int[] _tripIds;
+  private final int[] _tripRouteIds;
+  private final int[] _tripHeadsigns;
+  private final int[] _tripServices;
+  private final int[] _tripStartTimes;
+  private final int[] _tripEndTimes;
+  /**
+   * The stop times of trip t are _tripStopTimeStarts[t] up to (but not
+   * including) _tripStopTimeStarts[t + 1].
+   */
+  private final int[] _tripStopTimeStarts;
+
+  private final int[] _stopTimeStops;
+  private final int[] _stopTimeArrivals;
+  private final int[] _stopTimeDepartures;
+  private final int[] _stopTimeSequences;
+
+  private final int[] _stopIds;
+  private final int[] _stopNames;
+  private final int[] _stopLats;
+  private final int[] _stopLons;
+
+  private final int[] _blockIds;
+  /**
+   * The trips of block b are _blockTrips[_blockTripStarts[b]] up to (but not
+   * including) _blockTrips[_blockTripStarts[b + 1]], sorted by start time.
+   */
+  private final int[] _blockTripStarts;
+  private final int[] _blockTrips;
+
+  private ScheduleSnapshot(byte[] sourceChecksum, int maxStopTime,
+          String[] agencyIds, String[] agencyTimeZones, String[] dictionary,
+          int[] serviceIds, int[][] serviceDates, int[] tripIds,
+          int[] tripRouteIds, int[] tripHeadsigns, int[] tripServices,
+          int[] tripStartTimes, int[] tripEndTimes, int[] tripStopTimeStarts,
+          int[] stopTimeStops, int[] stopTimeArrivals,
+          int[] stopTimeDepartures, int[] stopTimeSequences, int[] stopIds,
+          int[] stopNames, int[] stopLats, int[] stopLons, int[] blockIds,
+          int[] blockTripStarts, int[] blockTrips) {
+    if (agencyIds.length == 0) {
+      throw new IllegalArgumentException("Schedule has no agencies");
+    }
+
+    _sourceChecksum = sourceChecksum;
+    _maxStopTime = maxStopTime;
+    _agencyIds = agencyIds;
+    _agencyTimeZones = new TimeZone[agencyTimeZones.length];
+    _dictionary = dictionary;
+    _serviceIds = serviceIds;
+    _serviceDates = serviceDates;
+    _tripIds = tripIds;
+    _tripRouteIds = tripRouteIds;
+    _tripHeadsigns = tripHeadsigns;
+    _tripServices = tripServices;
+    _tripStartTimes = tripStartTimes;
+    _tripEndTimes = tripEndTimes;
+    _tripStopTimeStarts = tripStopTimeStarts;
+    _stopTimeStops = stopTimeStops;
+    _stopTimeArrivals = stopTimeArrivals;
+    _stopTimeDepartures = stopTimeDepartures;
+    _stopTimeSequences = stopTimeSequences;
+    _stopIds = stopIds;
+    _stopNames = stopNames;
+    _stopLats = stopLats;
+    _stopLons = stopLons;
+    _blockIds = blockIds;
+    _blockTripStarts = blockTripStarts;
+    _blockTrips = blockTrips;
+
+    for (int i = 0; i < agencyTimeZones.length; i++) {
+      _agencyTimeZones[i] = TimeZone.getTimeZone(agencyTimeZones[i]);
+    }
+  }
+
+  /**
+   * Build a snapshot from a parsed GTFS feed.
+   *
+   * @param dao
+   * @param sourceChecksum checksum of the GTFS file the feed was read from
+   * @return
+   * @throws IllegalArgumentException if the feed has no agencies
+   */
+  public static ScheduleSnapshot fromGtfs(GtfsRelationalDao dao,
+          byte[] sourceChecksum) {
+    CalendarServiceData csd = new CalendarServiceDataFactoryImpl(dao).createData();
+    TreeSet<String> ids = new TreeSet<>();
+
+    List<String> agencyIds = new ArrayList<>();
+    List<String> agencyTimeZones = new ArrayList<>();
+
+    for (Agency a : dao.getAllAgencies()) {
+      agencyIds.add(a.getId());
+      agencyTimeZones.add(csd.getTimeZoneForAgencyId(a.getId()).getID());
+    }
+
+    List<AgencyAndId> serviceIdList = new ArrayList<>(csd.getServiceIds());
+    Map<AgencyAndId, Integer> serviceIndices = new HashMap<>();
+    int[][] serviceDates = new int[serviceIdList.size()][];
+
+    for (int s = 0; s < serviceIdList.size(); s++) {
+      AgencyAndId serviceId = serviceIdList.get(s);
+      List<ServiceDate> dates = csd.getServiceDatesForServiceId(serviceId);
+
+      serviceIndices.put(serviceId, s);
+      ids.add(serviceId.getId());
+      serviceDates[s] = new int[dates.size()];
+
+      for (int d = 0; d < dates.size(); d++) {
+        serviceDates[s][d] = dateKey(dates.get(d));
+      }
+      Arrays.sort(serviceDates[s]);
+    }
+
+    Map<String, Stop> stopsById = new HashMap<>();
+
+    for (Stop stop : dao.getAllStops()) {
+      stopsById.put(stop.getId().getId(), stop);
+      ids.add(stop.getId().getId());
+      ids.add(stopName(stop));
+    }
+
+    List<TripRow> trips = new ArrayList<>();
+    int maxStopTime = -1;
+    int stopTimeCount = 0;
+
+    for (Trip t : dao.getAllTrips()) {
+      List<StopTime> stopTimes = dao.getStopTimesForTrip(t);
+
+      for (StopTime st : stopTimes) {
+        if (st.isArrivalTimeSet() && st.getArrivalTime() > maxStopTime) {
+          maxStopTime = st.getArrivalTime();
+        }
+
+        if (st.isDepartureTimeSet() && st.getDepartureTime() > maxStopTime) {
+          maxStopTime = st.getDepartureTime();
+        }
+      }
+
+      Integer serviceIndex = serviceIndices.get(t.getServiceId());
+
+      if (stopTimes.isEmpty() || serviceIndex == null) {
+        continue;
+      }
+
+      StopTime first = stopTimes.get(0);
+      StopTime last = stopTimes.get(stopTimes.size() - 1);
+
+      TripRow row = new TripRow(t.getId().getId(),
+              t.getRoute().getId().getId(), headsign(t, last), serviceIndex,
+              t.getBlockId(), first.getArrivalTime(), last.getDepartureTime(),
+              stopTimes);
+      trips.add(row);
+      stopTimeCount += stopTimes.size();
+
+      ids.add(row.tripId);
+      ids.add(row.routeId);
+      ids.add(row.headsign);
+      if (row.blockId != null) {
+        ids.add(row.blockId);
+      }
+    }
+
+    Collections.sort(trips, new Comparator<TripRow>() {
+      @Override
+      public int compare(TripRow o1, TripRow o2) {
+        return o1.tripId.compareTo(o2.tripId);
+      }
+    });
+
+    String[] dictionary = ids.toArray(new String[ids.size()]);
+
+    int[] serviceIds = new int[serviceIdList.size()];
+    for (int s = 0; s < serviceIds.length; s++) {
+      serviceIds[s] = code(dictionary, serviceIdList.get(s).getId());
+    }
+
+    int tripCount = trips.size();
+    int[] tripIds = new int[tripCount];
+    int[] tripRouteIds = new int[tripCount];
+    int[] tripHeadsigns = new int[tripCount];
+    int[] tripServices = new int[tripCount];
+    int[] tripStartTimes = new int[tripCount];
+    int[] tripEndTimes = new int[tripCount];
+    int[] tripStopTimeStarts = new int[tripCount + 1];
+    int[] stopTimeStops = new int[stopTimeCount];
+    int[] stopTimeArrivals = new int[stopTimeCount];
+    int[] stopTimeDepartures = new int[stopTimeCount];
+    int[] stopTimeSequences = new int[stopTimeCount];
+    Map<String, List<Integer>> tripsByBlock = new HashMap<>();
+
+    String[] stopIdList = stopsById.keySet().toArray(new String[0]);
+    Arrays.sort(stopIdList);
+    int nextStopTime = 0;
+
+    for (int i = 0; i < tripCount; i++) {
+      TripRow row = trips.get(i);
+
+      tripIds[i] = code(dictionary, row.tripId);
+      tripRouteIds[i] = code(dictionary, row.routeId);
+      tripHeadsigns[i] = code(dictionary, row.headsign);
+      tripServices[i] = row.service;
+      tripStartTimes[i] = row.startTime;
+      tripEndTimes[i] = row.endTime;
+      tripStopTimeStarts[i] = nextStopTime;
+
+      for (StopTime st : row.stopTimes) {
+        stopTimeStops[nextStopTime] = Arrays.binarySearch(stopIdList,
+                st.getStop().getId().getId());
+        stopTimeArrivals[nextStopTime] = st.isArrivalTimeSet()
+                ? st.getArrivalTime() : -1;
+        stopTimeDepartures[nextStopTime] = st.isDepartureTimeSet()
+                ? st.getDepartureTime() : -1;
+        stopTimeSequences[nextStopTime] = st.getStopSequence();
+        nextStopTime++;
+      }
+
+      if (row.blockId != null) {
+        List<Integer> blockTrips = tripsByBlock.get(row.blockId);
+
+        if (blockTrips == null) {
+          blockTrips = new ArrayList<>();
+          tripsByBlock.put(row.blockId, blockTrips);
+        }
+        blockTrips.add(i);
+      }
+    }
+
+    tripStopTimeStarts[tripCount] = nextStopTime;
+
+    int[] stopIds = new int[stopIdList.length];
+    int[] stopNames = new int[stopIdList.length];
+    int[] stopLats = new int[stopIdList.length];
+    int[] stopLons = new int[stopIdList.length];
+
+    for (int i = 0; i < stopIdList.length; i++) {
+      Stop stop = stopsById.get(stopIdList[i]);
+
+      stopIds[i] = code(dictionary, stopIdList[i]);
+      stopNames[i] = code(dictionary, stopName(stop));
+      stopLats[i] = microdegrees(stop.getLat());
+      stopLons[i] = microdegrees(stop.getLon());
+    }
+
+    String[] blockIdList = tripsByBlock.keySet().toArray(new String[0]);
+    Arrays.sort(blockIdList);
+
+    int[] blockIds = new int[blockIdList.length];
+    int[] blockTripStarts = new int[blockIdList.length + 1];
+    int[] blockTrips = new int[tripCount];
+    int next = 0;
+
+    for (int b = 0; b < blockIdList.length; b++) {
+      final int[] startTimes = tripStartTimes;
+      List<Integer> rows = tripsByBlock.get(blockIdList[b]);
+
+      Collections.sort(rows, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          return Integer.compare(startTimes[o1], startTimes[o2]);
+        }
+      });
+
+      blockIds[b] = code(dictionary, blockIdList[b]);
+      blockTripStarts[b] = next;
+      for (int trip : rows) {
+        blockTrips[next++] = trip;
+      }
+    }
+    blockTripStarts[blockIdList.length] = next;
+
+    return new ScheduleSnapshot(sourceChecksum, maxStopTime,
+            agencyIds.toArray(new String[0]),
+            agencyTimeZones.toArray(new String[0]), dictionary, serviceIds,
+            serviceDates, tripIds, tripRouteIds, tripHeadsigns, tripServices,
+            tripStartTimes, tripEndTimes, tripStopTimeStarts, stopTimeStops,
+            stopTimeArrivals, stopTimeDepartures, stopTimeSequences, stopIds,
+            stopNames, stopLats, stopLons, blockIds, blockTripStarts,
+            Arrays.copyOf(blockTrips, next));
+  }
+
+  /**
+   * Read a snapshot file through a memory mapping.
+   *
+   * The mapping only serves to load the file quickly: each column is copied
+   * out of it into a heap array with a single bulk get, and the mapping is
+   * not used once this returns. The columns are read on every poll, so they
+   * are kept as plain arrays rather than as views of the mapping.
+   *
+   * @param file
+   * @return
+   * @throws IOException if the file is not a snapshot of the current version
+   */
+  public static ScheduleSnapshot read(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+              channel.size());
+
+      if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+        throw new IOException("Not a version " + VERSION
+                + " schedule snapshot: " + file);
+      }
+
+      byte[] sourceChecksum = new byte[buf.getInt()];
+      buf.get(sourceChecksum);
+
+      int maxStopTime = buf.getInt();
+
+      String[] agencyIds = readStrings(buf);
+      String[] agencyTimeZones = readStrings(buf);
+
+      String[] dictionary = readStrings(buf);
+
+      int[] serviceIds = readInts(buf);
+      int[][] serviceDates = new int[serviceIds.length][];
+      for (int s = 0; s < serviceIds.length; s++) {
+        serviceDates[s] = readInts(buf);
+      }
+
+      int[] tripIds = readInts(buf);
+      int[] tripRouteIds = readInts(buf);
+      int[] tripHeadsigns = readInts(buf);
+      int[] tripServices = readInts(buf);
+      int[] tripStartTimes = readInts(buf);
+      int[] tripEndTimes = readInts(buf);
+      int[] tripStopTimeStarts = readInts(buf);
+
+      int[] stopTimeStops = readInts(buf);
+      int[] stopTimeArrivals = readInts(buf);
+      int[] stopTimeDepartures = readInts(buf);
+      int[] stopTimeSequences = readInts(buf);
+
+      int[] stopIds = readInts(buf);
+      int[] stopNames = readInts(buf);
+      int[] stopLats = readInts(buf);
+      int[] stopLons = readInts(buf);
+
+      int[] blockIds = readInts(buf);
+      int[] blockTripStarts = readInts(buf);
+      int[] blockTrips = readInts(buf);
+
+      return new ScheduleSnapshot(sourceChecksum, maxStopTime, agencyIds,
+              agencyTimeZones, dictionary, serviceIds, serviceDates, tripIds,
+              tripRouteIds, tripHeadsigns, tripServices, tripStartTimes,
+              tripEndTimes, tripStopTimeStarts, stopTimeStops, stopTimeArrivals,
+              stopTimeDepartures, stopTimeSequences, stopIds, stopNames,
+              stopLats, stopLons, blockIds, blockTripStarts, blockTrips);
+    } catch (RuntimeException ex) {
+      throw new IOException("Corrupt schedule snapshot: " + file, ex);
+    }
+  }
+
+  /**
+   * Read only the source checksum recorded in a snapshot file.
+   *
+   * @param file
+   * @return the checksum, or null if the file is not a snapshot of the
+   * current version
+   * @throws IOException
+   */
+  public static byte[] readSourceChecksum(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.READ)) {
+      ByteBuffer buf = ByteBuffer.allocate(64);
+      channel.read(buf);
+      buf.flip();
+
+      if (buf.remaining() < 12 || buf.getInt() != MAGIC
+              || buf.getInt() != VERSION) {
+        return null;
+      }
+
+      int length = buf.getInt();
+      if (length > buf.remaining()) {
+        return null;
+      }
+
+      byte[] checksum = new byte[length];
+      buf.get(checksum);
+      return checksum;
+    }
+  }
+
+  /**
+   * Write the snapshot to a file.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+    String[] agencyTimeZones = new String[_agencyTimeZones.length];
+    for (int i = 0; i < agencyTimeZones.length; i++) {
+      agencyTimeZones[i] = _agencyTimeZones[i].getID();
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(_sourceChecksum.length);
+      out.write(_sourceChecksum);
+      out.writeInt(_maxStopTime);
+
+      writeStrings(out, _agencyIds);
+      writeStrings(out, agencyTimeZones);
+
+      writeStrings(out, _dictionary);
+
+      writeInts(out, _serviceIds);
+      for (int[] dates : _serviceDates) {
+        writeInts(out, dates);
+      }
+
+      writeInts(out, _tripIds);
+      writeInts(out, _tripRouteIds);
+      writeInts(out, _tripHeadsigns);
+      writeInts(out, _tripServices);
+      writeInts(out, _tripStartTimes);
+      writeInts(out, _tripEndTimes);
+      writeInts(out, _tripStopTimeStarts);
+
+      writeInts(out, _stopTimeStops);
+      writeInts(out, _stopTimeArrivals);
+      writeInts(out, _stopTimeDepartures);
+      writeInts(out, _stopTimeSequences);
+
+      writeInts(out, _stopIds);
+      writeInts(out, _stopNames);
+      writeInts(out, _stopLats);
+      writeInts(out, _stopLons);
+
+      writeInts(out, _blockIds);
+      writeInts(out, _blockTripStarts);
+      writeInts(out, _blockTrips);
+    }
+  }
+
+  public byte[] getSourceChecksum() {
+    return _sourceChecksum.clone();
+  }
+
+  @Override
+  public int getMaxStopTime() {
+    return _maxStopTime;
+  }
+
+  @Override
+  public TimeZone getTimeZone(String agencyId) {
+    for (int i = 0; i < _agencyIds.length; i++) {
+      if (_agencyIds[i].equals(agencyId)) {
+        return _agencyTimeZones[i];
+      }
+    }
+    return _agencyTimeZones[0];
+  }
+
+  @Override
+  public int getServiceCount() {
+    return _serviceIds.length;
+  }
+
+  @Override
+  public int[] getServiceDates(int service) {
+    return _serviceDates[service];
+  }
+
+  @Override
+  public int getTripIndex(String tripId) {
+    return indexOf(_tripIds, tripId);
+  }
+
+  @Override
+  public String getTripId(int trip) {
+    return _dictionary[_tripIds[trip]];
+  }
+
+  @Override
+  public String getTripRouteId(int trip) {
+    return _dictionary[_tripRouteIds[trip]];
+  }
+
+  @Override
+  public String getTripHeadsign(int trip) {
+    return _dictionary[_tripHeadsigns[trip]];
+  }
+
+  @Override
+  public int getTripService(int trip) {
+    return _tripServices[trip];
+  }
+
+  @Override
+  public int getTripStartTime(int trip) {
+    return _tripStartTimes[trip];
+  }
+
+  @Override
+  public int getTripEndTime(int trip) {
+    return _tripEndTimes[trip];
+  }
+
+  @Override
+  public int getTripStopTimesStart(int trip) {
+    return _tripStopTimeStarts[trip];
+  }
+
+  @Override
+  public int getTripStopTimesEnd(int trip) {
+    return _tripStopTimeStarts[trip + 1];
+  }
+
+  @Override
+  public int getStopTimeStop(int stopTime) {
+    return _stopTimeStops[stopTime];
+  }
+
+  @Override
+  public int getStopTimeArrival(int stopTime) {
+    return _stopTimeArrivals[stopTime];
+  }
+
+  @Override
+  public int getStopTimeDeparture(int stopTime) {
+    return _stopTimeDepartures[stopTime];
+  }
+
+  @Override
+  public int getStopTimeSequence(int stopTime) {
+    return _stopTimeSequences[stopTime];
+  }
+
+  @Override
+  public int getStopCount() {
+    return _stopIds.length;
+  }
+
+  @Override
+  public String getStopId(int stop) {
+    return _dictionary[_stopIds[stop]];
+  }
+
+  @Override
+  public String getStopName(int stop) {
+    return _dictionary[_stopNames[stop]];
+  }
+
+  @Override
+  public double getStopLat(int stop) {
+    return _stopLats[stop] / MICRODEGREES;
+  }
+
+  @Override
+  public double getStopLon(int stop) {
+    return _stopLons[stop] / MICRODEGREES;
+  }
+
+  @Override
+  public int getBlockCount() {
+    return _blockIds.length;
+  }
+
+  @Override
+  public String getBlockId(int block) {
+    return _dictionary[_blockIds[block]];
+  }
+
+  @Override
+  public int getBlockIndex(String blockId) {
+    return indexOf(_blockIds, blockId);
+  }
+
+  @Override
+  public int getBlockTripsStart(int block) {
+    return _blockTripStarts[block];
+  }
+
+  @Override
+  public int getBlockTripsEnd(int block) {
+    return _blockTripStarts[block + 1];
+  }
+
+  @Override
+  public int getBlockTrip(int blockTrip) {
+    return _blockTrips[blockTrip];
+  }
+
+  private static int dateKey(ServiceDate serviceDate) {
+    return serviceDate.getYear() * 10000 + serviceDate.getMonth() * 100
+            + serviceDate.getDay();
+  }
+
+  private static String stopName(Stop stop) {
+    return (stop.getName() != null) ? stop.getName() : "";
+  }
+
+  /**
+   * @return the trip's headsign, or the name of its last stop if it has none
+   */
+  private static String headsign(Trip trip, StopTime last) {
+    String headsign = trip.getTripHeadsign();
+
+    return (headsign != null && !headsign.isEmpty()) ? headsign
+            : stopName(last.getStop());
+  }
+
+  private static int microdegrees(double degrees) {
+    return (int) Math.round(degrees * MICRODEGREES);
+  }
+
+  /**
+   * @param codes dictionary codes, in ascending order
+   * @param id
+   * @return the position of the ID's code in codes, or -1 if it is absent
+   */
+  private int indexOf(int[] codes, String id) {
+    int code = Arrays.binarySearch(_dictionary, id);
+
+    if (code < 0) {
+      return -1;
+    }
+
+    int index = Arrays.binarySearch(codes, code);
+    return (index >= 0) ? index : -1;
+  }
+
+  private static int code(String[] dictionary, String id) {
+    return Arrays.binarySearch(dictionary, id);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values)
+          throws IOException {
+    out.writeInt(values.length);
+    for (int v : values) {
+      out.writeInt(v);
+    }
+  }
+
+  private static int[] readInts(ByteBuffer buf) {
+    int[] values = new int[buf.getInt()];
+    buf.asIntBuffer().get(values);
+    buf.position(buf.position() + values.length * 4);
+    return values;
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] values)
+          throws IOException {
+    out.writeInt(values.length);
+    for (String v : values) {
+      byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String[] readStrings(ByteBuffer buf) {
+    String[] values = new String[buf.getInt()];
+    byte[] bytes = new byte[256];
+
+    for (int i = 0; i < values.length; i++) {
+      int length = buf.getInt();
+
+      if (length > bytes.length) {
+        bytes = new byte[length];
+      }
+      buf.get(bytes, 0, length);
+      values[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+    return values;
+  }
+
+  private static class TripRow {
+
+    final String tripId;
+    final String routeId;
+    final String headsign;
+    final int service;
+    final String blockId;
+    final int startTime;
+    final int endTime;
+    final List<StopTime> stopTimes;
+
+    TripRow(String tripId, String routeId, String headsign, int service,
+            String blockId, int startTime, int endTime,
+            List<StopTime> stopTimes) {
+      this.tripId = tripId;
+      this.routeId = routeId;
+      this.headsign = headsign;
+      this.service = service;
+      this.blockId = blockId;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.stopTimes = stopTimes;
+    }
+  }
+}
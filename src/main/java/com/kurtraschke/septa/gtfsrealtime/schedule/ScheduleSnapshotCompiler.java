@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.schedule;
+
+import org.onebusaway.gtfs.impl.GtfsRelationalDaoImpl;
+import org.onebusaway.gtfs.serialization.GtfsReader;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loads schedule snapshots for GTFS files, compiling a new snapshot whenever
+ * the GTFS file's checksum no longer matches the one recorded in the existing
+ * snapshot.
+ *
+ * The GTFS may be a zip file or an unpacked directory; the checksum of a
+ * directory covers the name and contents of every file directly inside it.
+ * Snapshots are stored next to the GTFS file they were compiled from, with a
+ * .snapshot suffix. Running this class compiles the snapshots for the GTFS
+ * files named on the command line ahead of time.
+ *
+ * @author kurt
+ */
+public class ScheduleSnapshotCompiler {
+
+  private static final Logger _log = LoggerFactory.getLogger(ScheduleSnapshotCompiler.class);
+
+  public static void main(String[] args) throws IOException {
+    for (String gtfsPath : args) {
+      loadOrCompile(new File(gtfsPath));
+    }
+  }
+
+  /**
+   * Load the snapshot for a GTFS file, compiling and storing it first if it is
+   * missing or stale.
+   *
+   * If the snapshot cannot be stored, the freshly compiled snapshot is still
+   * returned.
+   *
+   * @param gtfsPath
+   * @return
+   * @throws IOException if the GTFS file cannot be read
+   */
+  public static ScheduleSnapshot loadOrCompile(File gtfsPath)
+          throws IOException {
+    long start = System.nanoTime();
+    File snapshotFile = snapshotFileFor(gtfsPath);
+    byte[] checksum = checksum(gtfsPath);
+
+    if (snapshotFile.isFile()) {
+      try {
+        if (Arrays.equals(checksum,
+                ScheduleSnapshot.readSourceChecksum(snapshotFile))) {
+          ScheduleSnapshot snapshot = ScheduleSnapshot.read(snapshotFile);
+          _log.info("Loaded schedule snapshot {} in {} ms", snapshotFile,
+                  (System.nanoTime() - start) / 1000000);
+          return snapshot;
+        }
+        _log.info("Schedule snapshot {} is stale", snapshotFile);
+      } catch (IOException ex) {
+        _log.warn("Ignoring unreadable schedule snapshot " + snapshotFile, ex);
+      }
+    }
+
+    ScheduleSnapshot snapshot = compile(gtfsPath, checksum);
+    _log.info("Compiled schedule snapshot for {} in {} ms", gtfsPath,
+            (System.nanoTime() - start) / 1000000);
+
+    try {
+      store(snapshot, snapshotFile);
+    } catch (IOException ex) {
+      _log.warn("Unable to store schedule snapshot " + snapshotFile, ex);
+    }
+
+    return snapshot;
+  }
+
+  public static File snapshotFileFor(File gtfsPath) {
+    return new File(gtfsPath.getPath() + ".snapshot");
+  }
+
+  /**
+   * Parse a GTFS file and build its snapshot, without storing it.
+   *
+   * @param gtfsPath
+   * @return
+   * @throws IOException
+   */
+  public static ScheduleSnapshot compile(File gtfsPath) throws IOException {
+    return compile(gtfsPath, checksum(gtfsPath));
+  }
+
+  private static ScheduleSnapshot compile(File gtfsPath, byte[] checksum)
+          throws IOException {
+    GtfsReader reader = new GtfsReader();
+    GtfsRelationalDaoImpl dao = new GtfsRelationalDaoImpl();
+    reader.setInputLocation(gtfsPath);
+    reader.setEntityStore(dao);
+    reader.run();
+    return ScheduleSnapshot.fromGtfs(dao, checksum);
+  }
+
+  /**
+   * Write the snapshot to a temporary file, then move it into place, so that
+   * a concurrent or interrupted run never leaves a partial snapshot behind.
+   */
+  private static void store(ScheduleSnapshot snapshot, File snapshotFile)
+          throws IOException {
+    File tmp = File.createTempFile(snapshotFile.getName(), ".tmp",
+            snapshotFile.getAbsoluteFile().getParentFile());
+
+    try {
+      snapshot.write(tmp);
+      java.nio.file.Files.move(tmp.toPath(), snapshotFile.toPath(),
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * @param gtfsPath
+   * @return the last-modified time of the GTFS file, or of the most recently
+   * modified file in a GTFS directory
+   */
+  public static long lastModified(File gtfsPath) {
+    long lastModified = gtfsPath.lastModified();
+
+    for (File f : sourceFiles(gtfsPath)) {
+      lastModified = Math.max(lastModified, f.lastModified());
+    }
+    return lastModified;
+  }
+
+  /**
+   * @param gtfsPath
+   * @return the length of the GTFS file, or the total length of the files in
+   * a GTFS directory
+   */
+  public static long length(File gtfsPath) {
+    long length = 0;
+
+    for (File f : sourceFiles(gtfsPath)) {
+      length += f.length();
+    }
+    return length;
+  }
+
+  private static byte[] checksum(File gtfsPath) throws IOException {
+    if (!gtfsPath.isDirectory()) {
+      return Files.asByteSource(gtfsPath).hash(Hashing.murmur3_128()).asBytes();
+    }
+
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    OutputStream out = Funnels.asOutputStream(hasher);
+
+    for (File f : sourceFiles(gtfsPath)) {
+      hasher.putString(f.getName(), StandardCharsets.UTF_8);
+      hasher.putLong(f.length());
+      Files.asByteSource(f).copyTo(out);
+    }
+    return hasher.hash().asBytes();
+  }
+
+  /**
+   * @return the GTFS file itself, or the files directly inside a GTFS
+   * directory in name order
+   */
+  private static File[] sourceFiles(File gtfsPath) {
+    if (!gtfsPath.isDirectory()) {
+      return new File[]{gtfsPath};
+    }
+
+    File[] files = gtfsPath.listFiles();
+
+    if (files == null) {
+      return new File[0];
+    }
+
+    List<File> regular = new ArrayList<>(files.length);
+    for (File f : files) {
+      if (f.isFile()) {
+        regular.add(f);
+      }
+    }
+
+    File[] sorted = regular.toArray(new File[regular.size()]);
+    Arrays.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        return o1.getName().compareTo(o2.getName());
+      }
+    });
+    return sorted;
+  }
+}
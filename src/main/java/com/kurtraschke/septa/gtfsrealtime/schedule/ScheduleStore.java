@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.schedule;
+
+import java.util.TimeZone;
+
+/**
+ * Read-only view of the schedule data the provider needs at runtime: the
+ * services, trips and blocks the block mapper and its index work from, on top
+ * of the narrower {@link StopTimes} and {@link StopGeometry} views.
+ *
+ * Services, trips and blocks are addressed by dense integer indices, and
+ * times are in seconds past service-day midnight, as in the narrower views.
+ * Dates are yyyymmdd integers.
+ *
+ * @author kurt
+ */
+public interface ScheduleStore extends StopTimes {
+
+  /**
+   * @return the latest arrival or departure time of any stop time
+   */
+  public int getMaxStopTime();
+
+  /**
+   * @return the time zone of the agency, or of the first agency in the feed if
+   * the agency is unknown
+   */
+  public TimeZone getTimeZone(String agencyId);
+
+  public int getServiceCount();
+
+  /**
+   * @return the active dates of the service, as yyyymmdd, in ascending order
+   */
+  public int[] getServiceDates(int service);
+
+  /**
+   * @return the index of the trip, or -1 if there is no such trip
+   */
+  public int getTripIndex(String tripId);
+
+  public String getTripId(int trip);
+
+  public String getTripRouteId(int trip);
+
+  /**
+   * @return the trip's headsign, or the name of its last stop if it has none
+   */
+  public String getTripHeadsign(int trip);
+
+  public int getTripService(int trip);
+
+  public int getTripStartTime(int trip);
+
+  public int getTripEndTime(int trip);
+
+  public int getBlockCount();
+
+  public String getBlockId(int block);
+
+  /**
+   * @return the index of the block, or -1 if there is no such block
+   */
+  public int getBlockIndex(String blockId);
+
+  /**
+   * @return the position of the first trip of the block; the trips of a block
+   * are numbered consecutively in start time order
+   */
+  public int getBlockTripsStart(int block);
+
+  /**
+   * @return one past the position of the last trip of the block
+   */
+  public int getBlockTripsEnd(int block);
+
+  /**
+   * @return the index of the trip at the given block trip position
+   */
+  public int getBlockTrip(int blockTrip);
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.schedule;
+
+/**
+ * Read-only view of the locations of a schedule's stops, which is all the
+ * service area index needs.
+ *
+ * Stops are numbered 0 to {@link #getStopCount()} - 1, and coordinates are
+ * WGS 84 degrees.
+ *
+ * @author kurt
+ */
+public interface StopGeometry {
+
+  public int getStopCount();
+
+  public double getStopLat(int stop);
+
+  public double getStopLon(int stop);
+}
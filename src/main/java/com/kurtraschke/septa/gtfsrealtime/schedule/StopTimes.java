@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.schedule;
+
+/**
+ * Read-only view of the stop times of a schedule's trips, and of the stops
+ * they serve, for placing vehicles along a trip and predicting their arrivals.
+ *
+ * Stop times are addressed by dense integer indices, and times are in seconds
+ * past service-day midnight.
+ *
+ * @author kurt
+ */
+public interface StopTimes extends StopGeometry {
+
+  /**
+   * @return the index of the first stop time of the trip; the stop times of a
+   * trip are numbered consecutively in stop sequence order
+   */
+  public int getTripStopTimesStart(int trip);
+
+  /**
+   * @return one past the index of the last stop time of the trip
+   */
+  public int getTripStopTimesEnd(int trip);
+
+  /**
+   * @return the index of the stop served by the stop time
+   */
+  public int getStopTimeStop(int stopTime);
+
+  /**
+   * @return the arrival time, or -1 if the stop time has none
+   */
+  public int getStopTimeArrival(int stopTime);
+
+  /**
+   * @return the departure time, or -1 if the stop time has none
+   */
+  public int getStopTimeDeparture(int stopTime);
+
+  public int getStopTimeSequence(int stopTime);
+
+  public String getStopId(int stop);
+
+  public String getStopName(int stop);
+}
@@ -15,25 +15,16 @@
  */
 package com.kurtraschke.septa.gtfsrealtime.services;
 
-import org.onebusaway.gtfs.impl.calendar.CalendarServiceDataFactoryImpl;
-import org.onebusaway.gtfs.model.AgencyAndId;
-import org.onebusaway.gtfs.model.StopTime;
-import org.onebusaway.gtfs.model.Trip;
-import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
-import org.onebusaway.gtfs.model.calendar.ServiceDate;
-import org.onebusaway.gtfs.services.GtfsRelationalDao;
-
-import com.google.common.collect.Iterables;
 import com.kurtraschke.septa.gtfsrealtime.model.ActivatedTrip;
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
-import java.util.Calendar;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -43,30 +34,17 @@ public class BlockToTripMapperService {
 
   private final int DAY_IN_SECONDS = 60 * 60 * 24;
   private final int AUTO_MAX_LOOK_BACK;
-  private final GtfsRelationalDao _dao;
-  private final CalendarServiceData _csd;
-
-  private final Logger _log = LoggerFactory.getLogger(BlockToTripMapperService.class);
-
-  public BlockToTripMapperService(GtfsRelationalDao dao) throws IOException {
-    _dao = dao;
-    _csd = new CalendarServiceDataFactoryImpl(dao).createData();
+  private final ScheduleStore _schedule;
+  private final BlockTripIndex _index;
+  private final ConcurrentHashMap<String, ServiceDays> _serviceDaysByTimeZone = new ConcurrentHashMap<>();
 
-    AUTO_MAX_LOOK_BACK = maxStopTime() / DAY_IN_SECONDS;
-  }
+  private static final ActivatedTrip[] NO_CANDIDATES = new ActivatedTrip[0];
 
-  private int maxStopTime() {
-    int maxStopTime = -1;
-    for (StopTime t : _dao.getAllStopTimes()) {
-      if (t.isArrivalTimeSet() && t.getArrivalTime() > maxStopTime) {
-        maxStopTime = t.getArrivalTime();
-      }
+  public BlockToTripMapperService(ScheduleStore schedule) {
+    _schedule = schedule;
+    _index = BlockTripIndex.build(schedule);
 
-      if (t.isDepartureTimeSet() && t.getDepartureTime() > maxStopTime) {
-        maxStopTime = t.getDepartureTime();
-      }
-    }
-    return maxStopTime;
+    AUTO_MAX_LOOK_BACK = _index.getMaxStopTime() / DAY_IN_SECONDS;
   }
 
   public int getAutoMaxLookBack() {
@@ -74,41 +52,159 @@ public class BlockToTripMapperService {
   }
 
   /**
-   * Identify the active trip in a block.
+   * Find every trip in a block that a vehicle on the block may be running at
+   * the given time: the trips scheduled to be running then, and those
+   * scheduled to start, or to have ended, within layoverWindow seconds of it.
    *
+   * Choosing among the candidates is left to the caller.
    *
-   * @param theBlock
-   * @param blockActiveTime
+   * @param agencyId
+   * @param blockId
+   * @param blockActiveTime in epoch seconds
    * @param maxLookBack
-   * @return
+   * @param layoverWindow in seconds
+   * @return the candidates, latest scheduled start first, each with its
+   * {@link ActivatedTrip#getLayover() layover}; empty if there are none or the
+   * block is unknown
+   */
+  public ActivatedTrip[] findCandidateTrips(String agencyId, String blockId,
+          long blockActiveTime, int maxLookBack, int layoverWindow) {
+    BlockTripIndex.Block block = _index.getBlock(blockId);
+
+    if (block == null) {
+      return NO_CANDIDATES;
+    }
+
+    return findCandidateTrips(block, serviceDays(agencyId), blockActiveTime,
+            maxLookBack, layoverWindow);
+  }
+
+  /**
+   * Find the candidate trips of many blocks at once, in block order.
+   *
+   * @param agencyId
+   * @param blockIds
+   * @param blockActiveTimes in epoch seconds, parallel to blockIds
+   * @param maxLookBack
+   * @param layoverWindow in seconds
+   * @return the candidates of each block, parallel to blockIds, as returned
+   * by {@link #findCandidateTrips(String, String, long, int, int)}; null
+   * where the block ID is null
+   */
+  public ActivatedTrip[][] findCandidateTrips(String agencyId,
+          String[] blockIds, long[] blockActiveTimes, int maxLookBack,
+          int layoverWindow) {
+    final int n = blockIds.length;
+    ActivatedTrip[][] results = new ActivatedTrip[n][];
+
+    if (n == 0) {
+      return results;
+    }
+
+    ServiceDays days = serviceDays(agencyId);
+
+    for (int v : blockOrder(blockIds)) {
+      if (blockIds[v] == null) {
+        continue;
+      }
+
+      BlockTripIndex.Block block = _index.getBlock(blockIds[v]);
+
+      results[v] = (block != null) ? findCandidateTrips(block, days,
+              blockActiveTimes[v], maxLookBack, layoverWindow) : NO_CANDIDATES;
+    }
+
+    return results;
+  }
+
+  /**
+   * @return the indices of blockIds, sorted by block ID, nulls first
    */
-  public ActivatedTrip mapBlockToTrip(AgencyAndId theBlock,
-          Calendar blockActiveTime, int maxLookBack) {
-    Set<ActivatedTrip> trips = new HashSet<>();
+  private static Integer[] blockOrder(final String[] blockIds) {
+    Integer[] order = new Integer[blockIds.length];
+    for (int v = 0; v < order.length; v++) {
+      order[v] = v;
+    }
 
-    for (Trip t : _dao.getTripsForBlockId(theBlock)) {
-      List<StopTime> tripStopTimes = _dao.getStopTimesForTrip(t);
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        String b1 = blockIds[o1];
+        String b2 = blockIds[o2];
+        return (b1 == null) ? ((b2 == null) ? 0 : -1)
+                : ((b2 == null) ? 1 : b1.compareTo(b2));
+      }
+    });
 
-      int tripStartTime = tripStopTimes.get(0).getArrivalTime();
-      int tripEndTime = tripStopTimes.get(tripStopTimes.size() - 1).getDepartureTime();
+    return order;
+  }
 
-      ServiceDate today = new ServiceDate(blockActiveTime);
+  private ActivatedTrip[] findCandidateTrips(BlockTripIndex.Block block,
+          ServiceDays days, long blockActiveTime, int maxLookBack,
+          int layoverWindow) {
+    List<ActivatedTrip> candidates = null;
+    int today = days.dayAt(blockActiveTime);
+
+    /* A trip starting within the window may belong to the next service
+     day. */
+    for (int d = days.dayAt(blockActiveTime + layoverWindow);
+            d >= 0 && d >= today - maxLookBack; d--) {
+      if (d >= days.size()) {
+        continue;
+      }
 
-      for (int i = 0; i <= maxLookBack; i++) {
-        ServiceDate shifted = today.shift(-1 * i);
-        Set<AgencyAndId> activeServices = _csd.getServiceIdsForDate(shifted);
+      BitSet activeServices = days.getActiveServices(d);
 
-        if (activeServices.contains(t.getServiceId())) {
-          Calendar origin = shifted.getAsCalendar(_csd.getTimeZoneForAgencyId(theBlock.getAgencyId()));
+      if (!block.hasAnyService(activeServices)) {
+        continue;
+      }
 
-          long when = (blockActiveTime.getTimeInMillis() - origin.getTimeInMillis()) / 1000;
+      long when = blockActiveTime - days.getOrigin(d);
 
-          if (when >= tripStartTime && tripEndTime >= when) {
-            trips.add(new ActivatedTrip(t, shifted));
-          }
+      for (int j = block.lastStartingAtOrBefore(when + layoverWindow);
+              j >= 0 && block.mayBeRunning(j, when - layoverWindow); j--) {
+        if (block.getEndTime(j) < when - layoverWindow
+                || !block.isServiceActive(j, activeServices)) {
+          continue;
         }
+
+        int layover = 0;
+
+        if (block.getStartTime(j) > when) {
+          layover = (int) (block.getStartTime(j) - when);
+        } else if (block.getEndTime(j) < when) {
+          layover = (int) (block.getEndTime(j) - when);
+        }
+
+        if (candidates == null) {
+          candidates = new ArrayList<>(2);
+        }
+
+        int trip = block.getTrip(j);
+        candidates.add(new ActivatedTrip(_schedule.getTripId(trip),
+                _schedule.getTripRouteId(trip), days.getStartDate(d),
+                days.getOrigin(d), layover));
+      }
+    }
+
+    return (candidates != null)
+            ? candidates.toArray(new ActivatedTrip[candidates.size()])
+            : NO_CANDIDATES;
+  }
+
+  private ServiceDays serviceDays(String agencyId) {
+    TimeZone tz = _schedule.getTimeZone(agencyId);
+    ServiceDays days = _serviceDaysByTimeZone.get(tz.getID());
+
+    if (days == null) {
+      days = ServiceDays.build(_schedule, tz);
+      ServiceDays existing = _serviceDaysByTimeZone.putIfAbsent(tz.getID(),
+              days);
+
+      if (existing != null) {
+        days = existing;
       }
     }
-    return Iterables.getOnlyElement(trips);
+    return days;
   }
 }
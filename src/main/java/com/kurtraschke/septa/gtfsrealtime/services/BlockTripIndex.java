@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
+
+import java.util.BitSet;
+
+/**
+ * Immutable index of block activation windows, built once per GTFS load.
+ *
+ * Blocks are numbered as in the schedule store, whose columns hold each
+ * block's trips sorted by start time along with their start and end times (in
+ * seconds past service-day midnight) and service indices; the index only adds
+ * what the store cannot answer directly.
+ *
+ * @author kurt
+ */
+class BlockTripIndex {
+
+  private final ScheduleStore _schedule;
+  private final Block[] _blocks;
+  private final int _maxStopTime;
+
+  private BlockTripIndex(ScheduleStore schedule, Block[] blocks) {
+    _schedule = schedule;
+    _blocks = blocks;
+    _maxStopTime = schedule.getMaxStopTime();
+  }
+
+  public static BlockTripIndex build(ScheduleStore schedule) {
+    int blockCount = schedule.getBlockCount();
+    Block[] blocks = new Block[blockCount];
+    int[] maxEndTimes = new int[(blockCount > 0)
+            ? schedule.getBlockTripsEnd(blockCount - 1) : 0];
+
+    for (int b = 0; b < blockCount; b++) {
+      blocks[b] = new Block(schedule, schedule.getBlockTripsStart(b),
+              schedule.getBlockTripsEnd(b), maxEndTimes);
+    }
+
+    return new BlockTripIndex(schedule, blocks);
+  }
+
+  /**
+   * @return the block, or null if the schedule has no such block
+   */
+  public Block getBlock(String blockId) {
+    int b = _schedule.getBlockIndex(blockId);
+
+    return (b >= 0) ? _blocks[b] : null;
+  }
+
+  public int getMaxStopTime() {
+    return _maxStopTime;
+  }
+
+  /**
+   * The trips of a single block, sorted by start time.
+   */
+  static class Block {
+
+    private final ScheduleStore _schedule;
+    private final int _first;
+    private final int _size;
+    /**
+     * _maxEndTimes[_first + i] is the latest end time of trips 0..i, which
+     * bounds the backwards scan from the last trip starting at or before a
+     * given time. The array is shared by all blocks and indexed by block trip
+     * position.
+     */
+    private final int[] _maxEndTimes;
+    private final BitSet _services = new BitSet();
+
+    private Block(ScheduleStore schedule, int first, int end,
+            int[] maxEndTimes) {
+      _schedule = schedule;
+      _first = first;
+      _size = end - first;
+      _maxEndTimes = maxEndTimes;
+
+      for (int p = first; p < end; p++) {
+        int t = schedule.getBlockTrip(p);
+        int endTime = schedule.getTripEndTime(t);
+        maxEndTimes[p] = (p == first) ? endTime
+                : Math.max(maxEndTimes[p - 1], endTime);
+        _services.set(schedule.getTripService(t));
+      }
+    }
+
+    public int size() {
+      return _size;
+    }
+
+    /**
+     * @return the index of the trip in the schedule store
+     */
+    public int getTrip(int i) {
+      return _schedule.getBlockTrip(_first + i);
+    }
+
+    public int getStartTime(int i) {
+      return _schedule.getTripStartTime(getTrip(i));
+    }
+
+    public int getEndTime(int i) {
+      return _schedule.getTripEndTime(getTrip(i));
+    }
+
+    public boolean isServiceActive(int i, BitSet activeServices) {
+      return activeServices.get(_schedule.getTripService(getTrip(i)));
+    }
+
+    public boolean hasAnyService(BitSet activeServices) {
+      return _services.intersects(activeServices);
+    }
+
+    /**
+     * @return the index of the last trip starting at or before the given time,
+     * or -1 if every trip starts after it
+     */
+    public int lastStartingAtOrBefore(long when) {
+      int lo = 0;
+      int hi = _size - 1;
+
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (getStartTime(mid) <= when) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      return hi;
+    }
+
+    /**
+     * @return true if some trip at or before index i may still be running at
+     * the given time
+     */
+    public boolean mayBeRunning(int i, long when) {
+      return _maxEndTimes[_first + i] >= when;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.kurtraschke.septa.gtfsrealtime.schedule.ScheduleStore;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Immutable table of the service days covered by a schedule, in one time
+ * zone.
+ *
+ * For each day from the first to the last date on which any service runs, the
+ * table holds the day's midnight and its GTFS time origin (noon minus twelve
+ * hours, which differs from midnight on days when daylight saving time
+ * begins or ends) in epoch seconds, the set of services active on it, and its
+ * date as a yyyymmdd string. Finding the day containing an instant is a
+ * binary search over the midnights, and allocates nothing.
+ *
+ * @author kurt
+ */
+class ServiceDays {
+
+  private static final int DAY_IN_SECONDS = 60 * 60 * 24;
+
+  /**
+   * Midnight of each day, followed by the midnight after the last day.
+   */
+  private final long[] _midnights;
+  private final long[] _origins;
+  private final BitSet[] _activeServices;
+  private final String[] _startDates;
+
+  private ServiceDays(long[] midnights, long[] origins,
+          BitSet[] activeServices, String[] startDates) {
+    _midnights = midnights;
+    _origins = origins;
+    _activeServices = activeServices;
+    _startDates = startDates;
+  }
+
+  public static ServiceDays build(ScheduleStore schedule, TimeZone tz) {
+    int first = Integer.MAX_VALUE;
+    int last = Integer.MIN_VALUE;
+
+    for (int s = 0; s < schedule.getServiceCount(); s++) {
+      for (int dateKey : schedule.getServiceDates(s)) {
+        first = Math.min(first, dateKey);
+        last = Math.max(last, dateKey);
+      }
+    }
+
+    if (first > last) {
+      return new ServiceDays(new long[1], new long[0], new BitSet[0],
+              new String[0]);
+    }
+
+    List<Long> midnights = new ArrayList<>();
+    List<Long> origins = new ArrayList<>();
+    List<String> startDates = new ArrayList<>();
+    Map<Integer, Integer> dayIndices = new HashMap<>();
+
+    Calendar day = Calendar.getInstance(tz);
+    day.clear();
+    day.set(first / 10000, (first / 100) % 100 - 1, first % 100);
+
+    for (int dateKey = first; dateKey <= last; dateKey = dateKey(day)) {
+      Calendar origin = (Calendar) day.clone();
+      origin.set(Calendar.HOUR_OF_DAY, 12);
+      origin.add(Calendar.HOUR_OF_DAY, -12);
+
+      dayIndices.put(dateKey, midnights.size());
+      midnights.add(day.getTimeInMillis() / 1000);
+      origins.add(origin.getTimeInMillis() / 1000);
+      startDates.add(Integer.toString(dateKey));
+
+      day.add(Calendar.DATE, 1);
+    }
+    midnights.add(day.getTimeInMillis() / 1000);
+
+    int n = origins.size();
+    BitSet[] activeServices = new BitSet[n];
+
+    for (int d = 0; d < n; d++) {
+      activeServices[d] = new BitSet();
+    }
+
+    for (int s = 0; s < schedule.getServiceCount(); s++) {
+      for (int dateKey : schedule.getServiceDates(s)) {
+        activeServices[dayIndices.get(dateKey)].set(s);
+      }
+    }
+
+    long[] midnightArray = new long[n + 1];
+    long[] originArray = new long[n];
+
+    for (int d = 0; d < n; d++) {
+      midnightArray[d] = midnights.get(d);
+      originArray[d] = origins.get(d);
+    }
+    midnightArray[n] = midnights.get(n);
+
+    return new ServiceDays(midnightArray, originArray, activeServices,
+            startDates.toArray(new String[n]));
+  }
+
+  public int size() {
+    return _origins.length;
+  }
+
+  /**
+   * @param time in epoch seconds
+   * @return the index of the day containing the time; -1 if it is before the
+   * first day, and size() or more if it is after the last
+   */
+  public int dayAt(long time) {
+    int n = _origins.length;
+
+    if (n == 0 || time < _midnights[0]) {
+      return -1;
+    }
+
+    if (time >= _midnights[n]) {
+      return n + (int) ((time - _midnights[n]) / DAY_IN_SECONDS);
+    }
+
+    int lo = 0;
+    int hi = n - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+
+      if (_midnights[mid] <= time) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi;
+  }
+
+  /**
+   * @return the time origin of the day, in epoch seconds
+   */
+  public long getOrigin(int day) {
+    return _origins[day];
+  }
+
+  public BitSet getActiveServices(int day) {
+    return _activeServices[day];
+  }
+
+  /**
+   * @return the date of the day, as a yyyymmdd string
+   */
+  public String getStartDate(int day) {
+    return _startDates[day];
+  }
+
+  private static int dateKey(Calendar c) {
+    return c.get(Calendar.YEAR) * 10000 + (c.get(Calendar.MONTH) + 1) * 100
+            + c.get(Calendar.DAY_OF_MONTH);
+  }
+}
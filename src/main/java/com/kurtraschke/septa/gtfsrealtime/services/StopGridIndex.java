@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.kurtraschke.septa.gtfsrealtime.schedule.StopGeometry;
+
+import java.util.Arrays;
+
+/**
+ * Immutable uniform grid over the stops of a schedule, built once per GTFS
+ * load, for deciding whether a vehicle position lies within the service area
+ * and which stop it is nearest to.
+ *
+ * Coordinates are projected onto a local plane in meters (an equirectangular
+ * projection about the center of the stops, which is accurate to well under a
+ * percent over a region the size of SEPTA's). The grid cell size equals the
+ * search radius, so a query examines at most the 3x3 cells around the point.
+ * Occupied cells are held as a sorted array of packed (row, column) keys with
+ * the stops of each cell in a parallel array, so queries allocate nothing.
+ *
+ * @author kurt
+ */
+public class StopGridIndex {
+
+  private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+  private final double _radius;
+  private final double _originLat;
+  private final double _originLon;
+  private final double _metersPerDegreeLon;
+  private final long[] _cellKeys;
+  /**
+   * The stops of cell c are _cellStops[_cellStarts[c]] up to (but not
+   * including) _cellStops[_cellStarts[c + 1]].
+   */
+  private final int[] _cellStarts;
+  private final int[] _cellStops;
+  private final double[] _stopX;
+  private final double[] _stopY;
+
+  private StopGridIndex(double radius, double originLat, double originLon,
+          double metersPerDegreeLon, long[] cellKeys, int[] cellStarts,
+          int[] cellStops, double[] stopX, double[] stopY) {
+    _radius = radius;
+    _originLat = originLat;
+    _originLon = originLon;
+    _metersPerDegreeLon = metersPerDegreeLon;
+    _cellKeys = cellKeys;
+    _cellStarts = cellStarts;
+    _cellStops = cellStops;
+    _stopX = stopX;
+    _stopY = stopY;
+  }
+
+  /**
+   * @param stops
+   * @param radius how far from the nearest stop, in meters, a position may be
+   * and still lie within the service area
+   * @return
+   */
+  public static StopGridIndex build(StopGeometry stops, double radius) {
+    int n = stops.getStopCount();
+    double minLat = Double.POSITIVE_INFINITY;
+    double maxLat = Double.NEGATIVE_INFINITY;
+    double minLon = Double.POSITIVE_INFINITY;
+    double maxLon = Double.NEGATIVE_INFINITY;
+
+    for (int s = 0; s < n; s++) {
+      double lat = stops.getStopLat(s);
+      double lon = stops.getStopLon(s);
+
+      if (hasLocation(lat, lon)) {
+        minLat = Math.min(minLat, lat);
+        maxLat = Math.max(maxLat, lat);
+        minLon = Math.min(minLon, lon);
+        maxLon = Math.max(maxLon, lon);
+      }
+    }
+
+    double originLat = (minLat + maxLat) / 2;
+    double originLon = (minLon + maxLon) / 2;
+    double metersPerDegreeLon = METERS_PER_DEGREE
+            * Math.cos(Math.toRadians(originLat));
+
+    double[] stopX = new double[n];
+    double[] stopY = new double[n];
+    boolean[] located = new boolean[n];
+    long[] stopCells = new long[n];
+    int locatedCount = 0;
+
+    for (int s = 0; s < n; s++) {
+      double lat = stops.getStopLat(s);
+      double lon = stops.getStopLon(s);
+
+      if (hasLocation(lat, lon)) {
+        stopX[s] = (lon - originLon) * metersPerDegreeLon;
+        stopY[s] = (lat - originLat) * METERS_PER_DEGREE;
+        stopCells[s] = cellKey(cell(stopY[s], radius), cell(stopX[s], radius));
+        located[s] = true;
+        locatedCount++;
+      }
+    }
+
+    long[] cellKeys = new long[locatedCount];
+    int cellCount = 0;
+
+    for (int s = 0; s < n; s++) {
+      if (located[s]) {
+        cellKeys[cellCount++] = stopCells[s];
+      }
+    }
+    Arrays.sort(cellKeys);
+
+    cellCount = 0;
+    for (int i = 0; i < cellKeys.length; i++) {
+      if (cellCount == 0 || cellKeys[cellCount - 1] != cellKeys[i]) {
+        cellKeys[cellCount++] = cellKeys[i];
+      }
+    }
+    cellKeys = Arrays.copyOf(cellKeys, cellCount);
+
+    int[] stopCellIndices = new int[n];
+    int[] cellStarts = new int[cellCount + 1];
+    int[] cellStops = new int[locatedCount];
+
+    for (int s = 0; s < n; s++) {
+      if (located[s]) {
+        stopCellIndices[s] = Arrays.binarySearch(cellKeys, stopCells[s]);
+        cellStarts[stopCellIndices[s] + 1]++;
+      }
+    }
+
+    for (int c = 0; c < cellCount; c++) {
+      cellStarts[c + 1] += cellStarts[c];
+    }
+
+    int[] next = Arrays.copyOf(cellStarts, cellCount);
+
+    for (int s = 0; s < n; s++) {
+      if (located[s]) {
+        cellStops[next[stopCellIndices[s]]++] = s;
+      }
+    }
+
+    return new StopGridIndex(radius, originLat, originLon, metersPerDegreeLon,
+            cellKeys, cellStarts, cellStops, stopX, stopY);
+  }
+
+  /**
+   * @return true if the schedule has no located stops, so that every position
+   * is taken to lie within the service area
+   */
+  public boolean isEmpty() {
+    return _cellKeys.length == 0;
+  }
+
+  public double getRadius() {
+    return _radius;
+  }
+
+  /**
+   * @return true if the position lies within the search radius of some stop,
+   * or if the index is empty
+   */
+  public boolean isInServiceArea(double lat, double lon) {
+    return isEmpty() || nearestStop(lat, lon) >= 0;
+  }
+
+  /**
+   * @return the index of the stop nearest to the position, or -1 if no stop
+   * lies within the search radius
+   */
+  public int nearestStop(double lat, double lon) {
+    if (isEmpty()) {
+      return -1;
+    }
+
+    double x = (lon - _originLon) * _metersPerDegreeLon;
+    double y = (lat - _originLat) * METERS_PER_DEGREE;
+
+    if (Math.abs(x) > Integer.MAX_VALUE * _radius / 2
+            || Math.abs(y) > Integer.MAX_VALUE * _radius / 2) {
+      return -1;
+    }
+
+    int row = cell(y, _radius);
+    int col = cell(x, _radius);
+    int nearest = -1;
+    double nearestDistance = _radius * _radius;
+
+    for (int r = row - 1; r <= row + 1; r++) {
+      for (int c = col - 1; c <= col + 1; c++) {
+        int cell = Arrays.binarySearch(_cellKeys, cellKey(r, c));
+
+        if (cell < 0) {
+          continue;
+        }
+
+        for (int i = _cellStarts[cell]; i < _cellStarts[cell + 1]; i++) {
+          int s = _cellStops[i];
+          double dx = _stopX[s] - x;
+          double dy = _stopY[s] - y;
+          double d = dx * dx + dy * dy;
+
+          if (d <= nearestDistance) {
+            nearest = s;
+            nearestDistance = d;
+          }
+        }
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * GTFS stations and entrances may lack coordinates, which parse as 0,0.
+   */
+  private static boolean hasLocation(double lat, double lon) {
+    return lat != 0 || lon != 0;
+  }
+
+  private static int cell(double meters, double cellSize) {
+    return (int) Math.floor(meters / cellSize);
+  }
+
+  private static long cellKey(int row, int col) {
+    return ((long) row << 32) | (col & 0xffffffffL);
+  }
+}
@@ -15,98 +15,278 @@
  */
 package com.kurtraschke.septa.gtfsrealtime.services;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.inject.Inject;
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics;
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics.LaneMetrics;
 import com.kurtraschke.septa.gtfsrealtime.model.Train;
 
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 @Singleton
 public class TrainViewService {
 
+  private static final int LAT = 1;
+  private static final int LON = 1 << 1;
+  private static final int TRAIN_NUMBER = 1 << 2;
+  private static final int SERVICE = 1 << 3;
+  private static final int DESTINATION = 1 << 4;
+  private static final int NEXT_STOP = 1 << 5;
+  private static final int LATE = 1 << 6;
+  private static final int SOURCE = 1 << 7;
+  private static final int REQUIRED = LAT | LON | TRAIN_NUMBER | SERVICE
+          | DESTINATION | NEXT_STOP | LATE | SOURCE;
+
   private Logger _log = LoggerFactory.getLogger(TrainViewService.class);
-  private HttpClientConnectionManager _connectionManager;
+  private UpstreamSource _upstreamSource;
+  private SeptaRealtimeMetrics _metrics;
+  private URI _uri = URI.create(
+          "http://www3.septa.org/hackathon/TrainView/");
+  private final Interner<String> _strings = Interners.newWeakInterner();
+
+  @Inject
+  public void setUpstreamSource(UpstreamSource upstreamSource) {
+    _upstreamSource = upstreamSource;
+  }
 
-  @PostConstruct
-  public void start() {
-    _connectionManager = new BasicHttpClientConnectionManager();
+  @Inject
+  public void setMetrics(SeptaRealtimeMetrics metrics) {
+    _metrics = metrics;
   }
 
-  @PreDestroy
-  public void stop() {
-    _connectionManager.shutdown();
+  @Inject(optional = true)
+  public void setUrl(@Named("trainView.url") URL url) throws URISyntaxException {
+    _uri = url.toURI();
   }
 
-  public Collection<Train> getTrains() throws URISyntaxException,
-          ClientProtocolException, IOException {
-    URIBuilder b = new URIBuilder(
-            "http://www3.septa.org/hackathon/TrainView/");
-
-    CloseableHttpClient client = HttpClients.custom().setConnectionManager(
-            _connectionManager).build();
-
-    HttpGet httpget = new HttpGet(b.build());
-    try (CloseableHttpResponse response = client.execute(httpget);
-            InputStream responseInputStream = response.getEntity().getContent();
-            Reader responseEntityReader = new InputStreamReader(responseInputStream)) {
-      JsonParser parser = new JsonParser();
-
-      JsonArray trainObjects = (JsonArray) parser.parse(responseEntityReader);
-
-      ArrayList<Train> allTrains = new ArrayList<>(trainObjects.size());
-
-      for (JsonElement trainElement : trainObjects) {
-        JsonObject trainObject = (JsonObject) trainElement;
-
-        try {
-          allTrains.add(new Train(trainObject.get("lat").getAsDouble(),
-                  trainObject.get("lon").getAsDouble(),
-                  trainObject.get("trainno").getAsString(), trainObject.get(
-                          "service").getAsString(),
-                  trainObject.get("dest").getAsString(),
-                  trainObject.get("nextstop").getAsString(),
-                  trainObject.get("late").getAsInt(),
-                  trainObject.get("SOURCE").getAsString()));
-        } catch (Exception e) {
-          _log.warn("Exception processing train JSON", e);
-          _log.warn(trainObject.toString());
+  /**
+   * @return the current trains, or null if the upstream response is unchanged
+   * since the last call
+   * @throws IOException
+   */
+  public Collection<Train> getTrains() throws IOException {
+    byte[] body = fetchTrains();
+
+    if (body == null) {
+      return null;
+    }
+
+    final List<Train> all = new ArrayList<>();
+
+    decodeTrains(body, new VehicleHandler<Train>() {
+      @Override
+      public boolean handle(Train vehicle) {
+        all.add(vehicle);
+        return true;
+      }
+    });
+    return all;
+  }
+
+  /**
+   * Fetch the TrainView response, unless it is unchanged since the last call.
+   *
+   * @return the response body, or null if it is unchanged
+   * @throws IOException
+   */
+  public byte[] fetchTrains() throws IOException {
+    LaneMetrics metrics = _metrics.getRailMetrics();
+    long start = System.nanoTime();
+
+    byte[] body = _upstreamSource.fetchIfModified(_uri);
+
+    metrics.getFetch().update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+    if (body == null) {
+      metrics.getFetchUnchanged().inc();
+      return null;
+    }
+
+    metrics.getFetchBytes().update(body.length);
+    return body;
+  }
+
+  /**
+   * Forget the last response fetched, so that the next fetch returns it again
+   * even if it is unchanged.
+   */
+  public void invalidate() {
+    _upstreamSource.invalidate(_uri);
+  }
+
+  /**
+   * Decode a TrainView response, handing each train to the handler as soon as
+   * it is decoded. The parse time recorded includes any time the handler
+   * spends blocked.
+   *
+   * @param body
+   * @param handler
+   * @return false if the handler stopped decoding early
+   * @throws IOException
+   */
+  public boolean decodeTrains(byte[] body, VehicleHandler<Train> handler)
+          throws IOException {
+    long start = System.nanoTime();
+
+    try (Reader responseEntityReader = new InputStreamReader(
+            new ByteArrayInputStream(body), StandardCharsets.UTF_8)) {
+      boolean complete = readTrains(responseEntityReader, handler);
+      _metrics.getRailMetrics().getParse().update(System.nanoTime() - start,
+              TimeUnit.NANOSECONDS);
+      return complete;
+    }
+  }
+
+  /**
+   * Decode a TrainView response directly from the character stream.
+   *
+   * @param in
+   * @return the trains
+   * @throws IOException
+   */
+  public Collection<Train> readTrains(Reader in) throws IOException {
+    final List<Train> allTrains = new ArrayList<>();
+
+    readTrains(in, new VehicleHandler<Train>() {
+      @Override
+      public boolean handle(Train train) {
+        allTrains.add(train);
+        return true;
+      }
+    });
+    return allTrains;
+  }
+
+  /**
+   * Decode a TrainView response directly from the character stream, handing
+   * each train to the handler as soon as it is decoded.
+   *
+   * The response is an array of train objects. Unknown fields are skipped,
+   * and trains missing a required field are logged and dropped.
+   *
+   * @param in
+   * @param handler
+   * @return false if the handler stopped decoding early
+   * @throws IOException
+   */
+  public boolean readTrains(Reader in, VehicleHandler<Train> handler)
+          throws IOException {
+    JsonReader reader = new JsonReader(in);
+
+    reader.beginArray();
+    while (reader.hasNext()) {
+      Train train = readTrain(reader);
+
+      if (train != null && !handler.handle(train)) {
+        return false;
+      }
+    }
+    reader.endArray();
+
+    return true;
+  }
+
+  private Train readTrain(JsonReader reader) throws IOException {
+    double lat = 0, lon = 0;
+    String trainNumber = null, service = null, destination = null,
+            nextStop = null, source = null;
+    int late = 0;
+    int seen = 0;
+    boolean valid = true;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+
+      try {
+        switch (name) {
+          case "lat":
+            lat = reader.nextDouble();
+            seen |= LAT;
+            break;
+          case "lon":
+            lon = reader.nextDouble();
+            seen |= LON;
+            break;
+          case "trainno":
+            trainNumber = _strings.intern(reader.nextString());
+            seen |= TRAIN_NUMBER;
+            break;
+          case "service":
+            service = _strings.intern(reader.nextString());
+            seen |= SERVICE;
+            break;
+          case "dest":
+            destination = _strings.intern(reader.nextString());
+            seen |= DESTINATION;
+            break;
+          case "nextstop":
+            nextStop = _strings.intern(reader.nextString());
+            seen |= NEXT_STOP;
+            break;
+          case "late":
+            late = reader.nextInt();
+            seen |= LATE;
+            break;
+          case "SOURCE":
+            source = _strings.intern(reader.nextString());
+            seen |= SOURCE;
+            break;
+          default:
+            reader.skipValue();
         }
+      } catch (NumberFormatException | IllegalStateException e) {
+        _log.warn("Invalid value for {} in train JSON: {}", name, e.getMessage());
+        reader.skipValue();
+        valid = false;
       }
-      return allTrains;
     }
+    reader.endObject();
+
+    if (!valid || (seen & REQUIRED) != REQUIRED) {
+      _log.warn("Skipping incomplete train JSON (trainno={})", trainNumber);
+      return null;
+    }
+
+    return new Train(lat, lon, trainNumber, service, destination, nextStop,
+            late, source);
   }
 
-  public static void main(String... args) throws ClientProtocolException,
-          URISyntaxException, IOException {
+  public static void main(String... args) throws IOException {
+    UpstreamFetcher fetcher = new UpstreamFetcher();
+    fetcher.start();
     TrainViewService tvs = new TrainViewService();
-    tvs.start();
+    tvs.setUpstreamSource(fetcher);
+    tvs.setMetrics(new SeptaRealtimeMetrics());
     for (Train t : tvs.getTrains()) {
       System.out.println(t);
     }
 
-    tvs.stop();
+    fetcher.stop();
   }
 }
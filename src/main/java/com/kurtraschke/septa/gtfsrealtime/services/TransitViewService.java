@@ -15,108 +15,292 @@
  */
 package com.kurtraschke.septa.gtfsrealtime.services;
 
-import com.google.common.collect.Iterables;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonNull;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.inject.Inject;
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics;
+import com.kurtraschke.septa.gtfsrealtime.metrics.SeptaRealtimeMetrics.LaneMetrics;
 import com.kurtraschke.septa.gtfsrealtime.model.Bus;
 
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 @Singleton
 public class TransitViewService {
 
+  private static final int LAT = 1;
+  private static final int LNG = 1 << 1;
+  private static final int LABEL = 1 << 2;
+  private static final int VEHICLE_ID = 1 << 3;
+  private static final int BLOCK_ID = 1 << 4;
+  private static final int DIRECTION = 1 << 5;
+  private static final int OFFSET = 1 << 6;
+  private static final int REQUIRED = LAT | LNG | LABEL | VEHICLE_ID | BLOCK_ID
+          | DIRECTION | OFFSET;
+
   private Logger _log = LoggerFactory.getLogger(TransitViewService.class);
-  private HttpClientConnectionManager _connectionManager;
+  private UpstreamSource _upstreamSource;
+  private SeptaRealtimeMetrics _metrics;
+  private URI _uri = URI.create(
+          "http://www3.septa.org/hackathon/TransitViewAll/");
+  private final Interner<String> _strings = Interners.newWeakInterner();
+
+  @Inject
+  public void setUpstreamSource(UpstreamSource upstreamSource) {
+    _upstreamSource = upstreamSource;
+  }
+
+  @Inject
+  public void setMetrics(SeptaRealtimeMetrics metrics) {
+    _metrics = metrics;
+  }
+
+  @Inject(optional = true)
+  public void setUrl(@Named("transitView.url") URL url) throws URISyntaxException {
+    _uri = url.toURI();
+  }
+
+  /**
+   * @return the current buses, or null if the upstream response is unchanged
+   * since the last call
+   * @throws IOException
+   */
+  public Collection<Bus> getBuses() throws IOException {
+    byte[] body = fetchBuses();
+
+    if (body == null) {
+      return null;
+    }
+
+    final List<Bus> all = new ArrayList<>();
+
+    decodeBuses(body, new VehicleHandler<Bus>() {
+      @Override
+      public boolean handle(Bus vehicle) {
+        all.add(vehicle);
+        return true;
+      }
+    });
+    return all;
+  }
+
+  /**
+   * Fetch the TransitViewAll response, unless it is unchanged since the last call.
+   *
+   * @return the response body, or null if it is unchanged
+   * @throws IOException
+   */
+  public byte[] fetchBuses() throws IOException {
+    LaneMetrics metrics = _metrics.getBusMetrics();
+    long start = System.nanoTime();
+
+    byte[] body = _upstreamSource.fetchIfModified(_uri);
+
+    metrics.getFetch().update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+    if (body == null) {
+      metrics.getFetchUnchanged().inc();
+      return null;
+    }
+
+    metrics.getFetchBytes().update(body.length);
+    return body;
+  }
 
-  @PostConstruct
-  public void start() {
-    _connectionManager = new BasicHttpClientConnectionManager();
+  /**
+   * Forget the last response fetched, so that the next fetch returns it again
+   * even if it is unchanged.
+   */
+  public void invalidate() {
+    _upstreamSource.invalidate(_uri);
   }
 
-  @PreDestroy
-  public void stop() {
-    _connectionManager.shutdown();
+  /**
+   * Decode a TransitViewAll response, handing each bus to the handler as soon as
+   * it is decoded. The parse time recorded includes any time the handler
+   * spends blocked.
+   *
+   * @param body
+   * @param handler
+   * @return false if the handler stopped decoding early
+   * @throws IOException
+   */
+  public boolean decodeBuses(byte[] body, VehicleHandler<Bus> handler)
+          throws IOException {
+    long start = System.nanoTime();
+
+    try (Reader responseEntityReader = new InputStreamReader(
+            new ByteArrayInputStream(body), StandardCharsets.UTF_8)) {
+      boolean complete = readBuses(responseEntityReader, handler);
+      _metrics.getBusMetrics().getParse().update(System.nanoTime() - start,
+              TimeUnit.NANOSECONDS);
+      return complete;
+    }
+  }
+
+  /**
+   * Decode a TransitViewAll response directly from the character stream.
+   *
+   * @param in
+   * @return the buses
+   * @throws IOException
+   */
+  public Collection<Bus> readBuses(Reader in) throws IOException {
+    final List<Bus> allBuses = new ArrayList<>();
+
+    readBuses(in, new VehicleHandler<Bus>() {
+      @Override
+      public boolean handle(Bus bus) {
+        allBuses.add(bus);
+        return true;
+      }
+    });
+    return allBuses;
   }
 
-  public Collection<Bus> getBuses() throws URISyntaxException,
-          ClientProtocolException, IOException {
-    URIBuilder b = new URIBuilder(
-            "http://www3.septa.org/hackathon/TransitViewAll/");
-
-    CloseableHttpClient client = HttpClients.custom().setConnectionManager(
-            _connectionManager).build();
-
-    HttpGet httpget = new HttpGet(b.build());
-    try (CloseableHttpResponse response = client.execute(httpget);
-            InputStream responseInputStream = response.getEntity().getContent();
-            Reader responseEntityReader = new InputStreamReader(responseInputStream)) {
-      JsonParser parser = new JsonParser();
-
-      JsonObject root = (JsonObject) parser.parse(responseEntityReader);
-
-      JsonArray routes = (JsonArray) Iterables.getOnlyElement(root.entrySet()).getValue();
-
-      List<Bus> allBuses = new ArrayList<>();
-
-      for (JsonElement routeElement : routes) {
-        JsonArray buses = ((JsonArray) (Iterables.getOnlyElement(((JsonObject) routeElement).entrySet()).getValue()));
-
-        for (JsonElement busElement : buses) {
-          JsonObject busObject = (JsonObject) busElement;
-
-          try {
-            allBuses.add(new Bus(busObject.get("lat").getAsDouble(),
-                    busObject.get("lng").getAsDouble(),
-                    busObject.get("label").getAsString(),
-                    busObject.get("VehicleID").getAsString(), busObject.get(
-                            "BlockID").getAsString(),
-                    busObject.get("Direction").getAsString(),
-                    (!(busObject.get("destination") instanceof JsonNull))
-                    ? busObject.get("destination").getAsString() : null,
-                    busObject.get("Offset").getAsInt()));
-          } catch (Exception e) {
-            _log.warn("Exception processing bus JSON", e);
-            _log.warn(busObject.toString());
+  /**
+   * Decode a TransitViewAll response directly from the character stream,
+   * handing each bus to the handler as soon as it is decoded.
+   *
+   * The response is an object holding a single array of route objects, each
+   * of which maps a route name to an array of buses. Unknown fields are
+   * skipped, and buses missing a required field are logged and dropped.
+   *
+   * @param in
+   * @param handler
+   * @return false if the handler stopped decoding early
+   * @throws IOException
+   */
+  public boolean readBuses(Reader in, VehicleHandler<Bus> handler)
+          throws IOException {
+    JsonReader reader = new JsonReader(in);
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      reader.nextName();
+      reader.beginArray();
+      while (reader.hasNext()) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          reader.nextName();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            Bus bus = readBus(reader);
+
+            if (bus != null && !handler.handle(bus)) {
+              return false;
+            }
           }
+          reader.endArray();
         }
+        reader.endObject();
       }
-      return allBuses;
+      reader.endArray();
     }
+    reader.endObject();
+
+    return true;
+  }
+
+  private Bus readBus(JsonReader reader) throws IOException {
+    double lat = 0, lng = 0;
+    String label = null, vehicleId = null, blockId = null, direction = null,
+            destination = null;
+    int offset = 0;
+    int seen = 0;
+    boolean valid = true;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+
+      try {
+        switch (name) {
+          case "lat":
+            lat = reader.nextDouble();
+            seen |= LAT;
+            break;
+          case "lng":
+            lng = reader.nextDouble();
+            seen |= LNG;
+            break;
+          case "label":
+            label = reader.nextString();
+            seen |= LABEL;
+            break;
+          case "VehicleID":
+            vehicleId = reader.nextString();
+            seen |= VEHICLE_ID;
+            break;
+          case "BlockID":
+            blockId = _strings.intern(reader.nextString());
+            seen |= BLOCK_ID;
+            break;
+          case "Direction":
+            direction = _strings.intern(reader.nextString());
+            seen |= DIRECTION;
+            break;
+          case "destination":
+            destination = _strings.intern(reader.nextString());
+            break;
+          case "Offset":
+            offset = reader.nextInt();
+            seen |= OFFSET;
+            break;
+          default:
+            reader.skipValue();
+        }
+      } catch (NumberFormatException | IllegalStateException e) {
+        _log.warn("Invalid value for {} in bus JSON: {}", name, e.getMessage());
+        reader.skipValue();
+        valid = false;
+      }
+    }
+    reader.endObject();
+
+    if (!valid || (seen & REQUIRED) != REQUIRED) {
+      _log.warn("Skipping incomplete bus JSON (label={}, VehicleID={})", label,
+              vehicleId);
+      return null;
+    }
+
+    return new Bus(lat, lng, label, vehicleId, blockId, direction, destination,
+            offset);
   }
 
-  public static void main(String... args) throws ClientProtocolException,
-          URISyntaxException, IOException {
+  public static void main(String... args) throws IOException {
+    UpstreamFetcher fetcher = new UpstreamFetcher();
+    fetcher.start();
     TransitViewService tvs = new TransitViewService();
-    tvs.start();
+    tvs.setUpstreamSource(fetcher);
+    tvs.setMetrics(new SeptaRealtimeMetrics());
     for (Bus b : tvs.getBuses()) {
       System.out.println(b);
     }
 
-    tvs.stop();
+    fetcher.stop();
   }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Shared HTTP client for the live SEPTA upstream feeds.
+ *
+ * Connections are pooled and kept alive between polls, responses may be
+ * gzip-compressed, and each fetch is a conditional GET using the ETag and
+ * Last-Modified validators from the previous response for the same URI.
+ *
+ * @author kurt
+ */
+@Singleton
+public class UpstreamFetcher implements UpstreamSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(UpstreamFetcher.class);
+  private static final HashFunction BODY_HASH = Hashing.murmur3_128();
+
+  private PoolingHttpClientConnectionManager _connectionManager;
+  private CloseableHttpClient _client;
+  private final ConcurrentHashMap<URI, Validators> _validators = new ConcurrentHashMap<>();
+
+  @Inject(optional = true)
+  @Named("upstream.connectTimeout")
+  private int _connectTimeout = 10 * 1000;
+
+  @Inject(optional = true)
+  @Named("upstream.readTimeout")
+  private int _readTimeout = 30 * 1000;
+
+  @Inject(optional = true)
+  @Named("upstream.maxConnections")
+  private int _maxConnections = 4;
+
+  @PostConstruct
+  public void start() {
+    _connectionManager = new PoolingHttpClientConnectionManager();
+    _connectionManager.setMaxTotal(_maxConnections);
+    _connectionManager.setDefaultMaxPerRoute(_maxConnections);
+
+    RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(_connectTimeout)
+            .setConnectionRequestTimeout(_connectTimeout)
+            .setSocketTimeout(_readTimeout)
+            .build();
+
+    /* The default client sends Accept-Encoding: gzip,deflate and transparently
+     decodes compressed responses. */
+    _client = HttpClients.custom()
+            .setConnectionManager(_connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .build();
+  }
+
+  @PreDestroy
+  public void stop() {
+    try {
+      _client.close();
+    } catch (IOException ex) {
+      _log.warn("Exception while closing upstream HTTP client", ex);
+    }
+    _connectionManager.shutdown();
+  }
+
+  /**
+   * Fetch the body of a resource, unless it is unchanged since the last fetch.
+   *
+   * @param uri
+   * @return the response body, or null if the upstream answered 304 Not
+   * Modified or returned a body identical to the previous one
+   * @throws IOException
+   */
+  @Override
+  public byte[] fetchIfModified(URI uri) throws IOException {
+    HttpGet httpget = new HttpGet(uri);
+    Validators previous = _validators.get(uri);
+
+    if (previous != null) {
+      if (previous.etag != null) {
+        httpget.setHeader(HttpHeaders.IF_NONE_MATCH, previous.etag);
+      }
+      if (previous.lastModified != null) {
+        httpget.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previous.lastModified);
+      }
+    }
+
+    try (CloseableHttpResponse response = _client.execute(httpget)) {
+      int status = response.getStatusLine().getStatusCode();
+
+      if (status == HttpStatus.SC_NOT_MODIFIED) {
+        EntityUtils.consume(response.getEntity());
+        return null;
+      }
+
+      if (status != HttpStatus.SC_OK) {
+        EntityUtils.consume(response.getEntity());
+        throw new IOException("Unexpected response from " + uri + ": "
+                + response.getStatusLine());
+      }
+
+      byte[] body = EntityUtils.toByteArray(response.getEntity());
+      HashCode bodyHash = BODY_HASH.hashBytes(body);
+
+      _validators.put(uri, new Validators(
+              headerValue(response.getFirstHeader(HttpHeaders.ETAG)),
+              headerValue(response.getFirstHeader(HttpHeaders.LAST_MODIFIED)),
+              bodyHash));
+
+      if (previous != null && bodyHash.equals(previous.bodyHash)) {
+        return null;
+      }
+
+      return body;
+    }
+  }
+
+  @Override
+  public void invalidate(URI uri) {
+    _validators.remove(uri);
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public boolean isFinished() {
+    return false;
+  }
+
+  private static String headerValue(Header header) {
+    return (header != null) ? header.getValue() : null;
+  }
+
+  private static class Validators {
+
+    final String etag;
+    final String lastModified;
+    final HashCode bodyHash;
+
+    Validators(String etag, String lastModified, HashCode bodyHash) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.bodyHash = bodyHash;
+    }
+  }
+}
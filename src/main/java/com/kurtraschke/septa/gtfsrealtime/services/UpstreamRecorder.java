@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.google.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Fetches from the live upstream, and appends every changed payload to a
+ * compressed log for later replay by {@link UpstreamReplayer}.
+ *
+ * One log is kept per day, named upstream-yyyymmdd.log.gz, in the directory
+ * given by upstream.recordDir. Each record is the fetch time (epoch
+ * milliseconds, as a long), the URI (as modified UTF-8), the body length (as
+ * an int) and the body. Each record is flushed through the compressor as it is
+ * written, so a crash loses at most the record being written; a log that is
+ * reopened after a restart gains another gzip member, which readers handle
+ * transparently.
+ *
+ * @author kurt
+ */
+@Singleton
+public class UpstreamRecorder implements UpstreamSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(UpstreamRecorder.class);
+
+  private final UpstreamFetcher _fetcher;
+  private final SimpleDateFormat _dayFormat = new SimpleDateFormat("yyyyMMdd");
+  private String _day;
+  private DataOutputStream _out;
+
+  @Inject
+  @Named("upstream.recordDir")
+  private File _recordDir;
+
+  @Inject
+  public UpstreamRecorder(UpstreamFetcher fetcher) {
+    _fetcher = fetcher;
+  }
+
+  @Override
+  public byte[] fetchIfModified(URI uri) throws IOException {
+    long time = currentTimeMillis();
+    byte[] body = _fetcher.fetchIfModified(uri);
+
+    if (body != null) {
+      try {
+        record(time, uri, body);
+      } catch (IOException ex) {
+        _log.warn("Exception while recording upstream payload from " + uri, ex);
+      }
+    }
+    return body;
+  }
+
+  @Override
+  public void invalidate(URI uri) {
+    _fetcher.invalidate(uri);
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return _fetcher.currentTimeMillis();
+  }
+
+  @Override
+  public boolean isFinished() {
+    return false;
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    if (_out != null) {
+      try {
+        _out.close();
+      } catch (IOException ex) {
+        _log.warn("Exception while closing upstream log", ex);
+      }
+      _out = null;
+      _day = null;
+    }
+  }
+
+  private synchronized void record(long time, URI uri, byte[] body)
+          throws IOException {
+    String day = _dayFormat.format(new Date(time));
+
+    if (!day.equals(_day)) {
+      stop();
+      _recordDir.mkdirs();
+
+      File log = new File(_recordDir, "upstream-" + day + ".log.gz");
+      _out = new DataOutputStream(new GZIPOutputStream(
+              new BufferedOutputStream(new FileOutputStream(log, true)),
+              1 << 16, true));
+      _day = day;
+      _log.info("Recording upstream payloads to {}", log);
+    }
+
+    _out.writeLong(time);
+    _out.writeUTF(uri.toString());
+    _out.writeInt(body.length);
+    _out.write(body);
+    _out.flush();
+  }
+}
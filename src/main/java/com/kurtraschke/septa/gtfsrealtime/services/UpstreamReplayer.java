@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Plays back upstream payloads recorded by {@link UpstreamRecorder}, in place
+ * of the live upstream.
+ *
+ * upstream.replay names a log, or a directory of logs which are played in
+ * name (and so date) order. Replay starts at the first recorded payload on
+ * the first fetch, and runs upstream.replay.speed times faster than real time;
+ * {@link #currentTimeMillis()} reports the replayed time, so that trips are
+ * resolved as they were when the payloads were recorded. Each fetch returns
+ * the latest payload recorded for the URI up to the replayed time, or null if
+ * there has been none since the previous fetch; to see every recorded payload
+ * at N times speed, divide the refresh intervals by N. Once every recorded
+ * payload has been returned, the replayer reports itself {@link #isFinished()
+ * finished}.
+ *
+ * Logs are read, and payloads expanded as below, on a separate thread a few
+ * records ahead of the replayed time, so that a fetch only hands over
+ * payloads that are ready.
+ *
+ * With upstream.replay.fleetMultiplier set above 1, every vehicle in a
+ * payload is repeated that many times, with a suffix on its vehicle ID and
+ * label (buses) or train number (trains) to make each copy a distinct entity.
+ * Copies of buses keep their block, and so resolve to the same trips; copies
+ * of trains, whose train number is their block, do not resolve to trips.
+ *
+ * @author kurt
+ */
+@Singleton
+public class UpstreamReplayer implements UpstreamSource {
+
+  private static final Logger _log = LoggerFactory.getLogger(UpstreamReplayer.class);
+
+  private static final String[] BUS_ID_FIELDS = {"VehicleID", "label"};
+  private static final String[] TRAIN_ID_FIELDS = {"trainno"};
+
+  private static final int READ_AHEAD = 16;
+
+  /**
+   * Follows the last record of the last log.
+   */
+  private static final Record END = new Record(Long.MAX_VALUE, null, null);
+
+  @Inject
+  @Named("upstream.replay")
+  private File _replayPath;
+
+  @Inject(optional = true)
+  @Named("upstream.replay.speed")
+  private double _speed = 1;
+
+  @Inject(optional = true)
+  @Named("upstream.replay.fleetMultiplier")
+  private int _fleetMultiplier = 1;
+
+  private List<File> _logs;
+  private Thread _reader;
+  private final BlockingQueue<Record> _readAhead = new ArrayBlockingQueue<>(
+          READ_AHEAD);
+  private Record _next;
+
+  /* Used only by the reader thread. */
+  private int _nextLog;
+  private DataInputStream _in;
+  private File _currentLog;
+  private final Map<String, byte[]> _pending = new HashMap<>();
+  private final Map<String, byte[]> _returned = new HashMap<>();
+  private long _wallStart;
+  private long _replayStart;
+
+  @Override
+  public synchronized byte[] fetchIfModified(URI uri) throws IOException {
+    long now = currentTimeMillis();
+
+    while (_next != END && _next.time <= now) {
+      _pending.put(_next.uri, _next.body);
+      _next = takeRecord();
+
+      if (_next == END) {
+        _log.info("Replay of {} finished", _replayPath);
+      }
+    }
+
+    byte[] body = _pending.remove(uri.toString());
+
+    if (body != null) {
+      _returned.put(uri.toString(), body);
+    }
+    return body;
+  }
+
+  /**
+   * Return the last payload for the URI again on the next fetch, unless a
+   * newer one is due by then.
+   */
+  @Override
+  public synchronized void invalidate(URI uri) {
+    byte[] body = _returned.remove(uri.toString());
+
+    if (body != null && !_pending.containsKey(uri.toString())) {
+      _pending.put(uri.toString(), body);
+    }
+  }
+
+  /**
+   * @return true once the last recorded payload is due; any payloads still
+   * pending are returned by the next fetch of their URI
+   */
+  @Override
+  public synchronized boolean isFinished() {
+    return _next == END;
+  }
+
+  @Override
+  public synchronized long currentTimeMillis() {
+    if (_logs == null) {
+      start();
+    }
+    return _replayStart
+            + (long) ((System.currentTimeMillis() - _wallStart) * _speed);
+  }
+
+  private void start() {
+    File[] logs = _replayPath.isDirectory() ? _replayPath.listFiles()
+            : new File[]{_replayPath};
+
+    if (logs == null) {
+      logs = new File[0];
+    }
+    Arrays.sort(logs);
+
+    _logs = new ArrayList<>();
+    for (File log : logs) {
+      if (log.isFile()) {
+        _logs.add(log);
+      }
+    }
+
+    _reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readAhead();
+      }
+    }, "upstream-replay-reader");
+    _reader.setDaemon(true);
+    _reader.start();
+
+    _next = takeRecord();
+
+    _wallStart = System.currentTimeMillis();
+    _replayStart = (_next != END) ? _next.time : _wallStart;
+    _log.info("Replaying {} upstream logs from {} at {}x", _logs.size(),
+            _replayPath, _speed);
+  }
+
+  @PreDestroy
+  public synchronized void stop() {
+    if (_reader != null) {
+      _reader.interrupt();
+    }
+  }
+
+  /**
+   * @return the next record read ahead, or {@link #END} at the end of the
+   * last log, or if interrupted while waiting for it
+   */
+  private Record takeRecord() {
+    try {
+      return _readAhead.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return END;
+    }
+  }
+
+  /**
+   * Read every log, expanding each payload once, and queue the records for
+   * fetches to take; run on the reader thread.
+   */
+  private void readAhead() {
+    try {
+      Record record;
+
+      while ((record = readRecord()) != null) {
+        if (_fleetMultiplier > 1) {
+          record = expand(record);
+        }
+        _readAhead.put(record);
+      }
+      _readAhead.put(END);
+    } catch (InterruptedException ex) {
+      if (_in != null) {
+        closeLog();
+      }
+    }
+  }
+
+  private Record expand(Record record) {
+    try {
+      return new Record(record.time, record.uri,
+              multiplyFleet(record.body, _fleetMultiplier));
+    } catch (IOException | RuntimeException ex) {
+      _log.warn("Replaying a payload from " + _currentLog
+              + " without multiplying its fleet", ex);
+      return record;
+    }
+  }
+
+  /**
+   * @return the next record, moving on to the next log at the end of each,
+   * or at the first unreadable part of one; null at the end of the last
+   */
+  private Record readRecord() {
+    while (true) {
+      if (_in == null) {
+        if (_nextLog >= _logs.size()) {
+          return null;
+        }
+
+        _currentLog = _logs.get(_nextLog++);
+
+        try {
+          _in = new DataInputStream(new GZIPInputStream(
+                  new BufferedInputStream(new FileInputStream(_currentLog)),
+                  1 << 16));
+        } catch (IOException ex) {
+          _log.error("Skipping unreadable upstream log " + _currentLog, ex);
+          continue;
+        }
+        _log.info("Replaying {}", _currentLog);
+      }
+
+      try {
+        long time = _in.readLong();
+        String uri = _in.readUTF();
+        int length = _in.readInt();
+
+        if (length < 0) {
+          throw new IOException("Invalid record length " + length);
+        }
+
+        byte[] body = new byte[length];
+        _in.readFully(body);
+        return new Record(time, uri, body);
+      } catch (EOFException ex) {
+        /* The end of the log, or a record cut short by a crash while it was
+         being recorded. */
+        closeLog();
+      } catch (IOException ex) {
+        /* A corrupt log, such as one with a damaged gzip member; nothing more
+         can be read from it, so go on with the next. */
+        _log.error("Skipping the rest of corrupt upstream log " + _currentLog,
+                ex);
+        closeLog();
+      }
+    }
+  }
+
+  private void closeLog() {
+    try {
+      _in.close();
+    } catch (IOException ex) {
+      _log.warn("Exception while closing upstream log " + _currentLog, ex);
+    }
+    _in = null;
+  }
+
+  /**
+   * Repeat every vehicle in a TransitViewAll or TrainView payload.
+   */
+  static byte[] multiplyFleet(byte[] body, int factor) throws IOException {
+    JsonElement root;
+
+    try (Reader reader = new InputStreamReader(new ByteArrayInputStream(body),
+            StandardCharsets.UTF_8)) {
+      root = new JsonParser().parse(reader);
+    }
+
+    if (root.isJsonArray()) {
+      /* TrainView: an array of trains. */
+      root = multiply(root.getAsJsonArray(), factor, TRAIN_ID_FIELDS);
+    } else if (root.isJsonObject()) {
+      /* TransitViewAll: an array of objects mapping each route to its
+       buses. */
+      for (Map.Entry<String, JsonElement> e : root.getAsJsonObject().entrySet()) {
+        if (!e.getValue().isJsonArray()) {
+          continue;
+        }
+
+        for (JsonElement routes : e.getValue().getAsJsonArray()) {
+          if (!routes.isJsonObject()) {
+            continue;
+          }
+
+          JsonObject byRoute = routes.getAsJsonObject();
+
+          for (Map.Entry<String, JsonElement> route
+                  : new ArrayList<>(byRoute.entrySet())) {
+            if (route.getValue().isJsonArray()) {
+              byRoute.add(route.getKey(), multiply(
+                      route.getValue().getAsJsonArray(), factor, BUS_ID_FIELDS));
+            }
+          }
+        }
+      }
+    }
+
+    return root.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static JsonArray multiply(JsonArray vehicles, int factor,
+          String[] idFields) {
+    JsonArray multiplied = new JsonArray();
+
+    for (JsonElement vehicle : vehicles) {
+      multiplied.add(vehicle);
+    }
+
+    for (int copy = 1; copy < factor; copy++) {
+      for (JsonElement vehicle : vehicles) {
+        if (!vehicle.isJsonObject()) {
+          continue;
+        }
+
+        JsonObject clone = new JsonObject();
+
+        for (Map.Entry<String, JsonElement> e
+                : vehicle.getAsJsonObject().entrySet()) {
+          clone.add(e.getKey(), e.getValue());
+        }
+
+        for (String field : idFields) {
+          JsonElement id = clone.get(field);
+
+          if (id != null && id.isJsonPrimitive()) {
+            clone.addProperty(field, id.getAsString() + "x" + copy);
+          }
+        }
+        multiplied.add(clone);
+      }
+    }
+    return multiplied;
+  }
+
+  private static class Record {
+
+    final long time;
+    final String uri;
+    final byte[] body;
+
+    Record(long time, String uri, byte[] body) {
+      this.time = time;
+      this.uri = uri;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Where upstream payloads come from: the live SEPTA endpoints, or a recording
+ * of them.
+ *
+ * @author kurt
+ */
+public interface UpstreamSource {
+
+  /**
+   * Fetch the body of a resource, unless it is unchanged since the last fetch.
+   *
+   * @param uri
+   * @return the response body, or null if it is unchanged
+   * @throws IOException
+   */
+  public byte[] fetchIfModified(URI uri) throws IOException;
+
+  /**
+   * Forget the body last fetched from a resource, so that the next fetch
+   * returns it again even if it is unchanged; for use when the body could not
+   * be processed.
+   *
+   * @param uri
+   */
+  public void invalidate(URI uri);
+
+  /**
+   * @return the time as of which the payloads are current, in epoch
+   * milliseconds; this is the wall clock except when replaying a recording
+   */
+  public long currentTimeMillis();
+
+  /**
+   * @return true once there are no more payloads to come, as at the end of a
+   * recording; the live upstream never finishes
+   */
+  public boolean isFinished();
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+
+import java.io.File;
+
+import javax.inject.Named;
+
+/**
+ * Chooses the {@link UpstreamSource}: a {@link UpstreamReplayer} if
+ * upstream.replay is set, a {@link UpstreamRecorder} if upstream.recordDir is
+ * set, and the live {@link UpstreamFetcher} otherwise.
+ *
+ * @author kurt
+ */
+public class UpstreamSourceProvider implements Provider<UpstreamSource> {
+
+  @Inject
+  private Injector _injector;
+
+  @Inject(optional = true)
+  @Named("upstream.replay")
+  private File _replayPath;
+
+  @Inject(optional = true)
+  @Named("upstream.recordDir")
+  private File _recordDir;
+
+  @Override
+  public UpstreamSource get() {
+    if (_replayPath != null) {
+      return _injector.getInstance(UpstreamReplayer.class);
+    }
+
+    if (_recordDir != null) {
+      return _injector.getInstance(UpstreamRecorder.class);
+    }
+
+    return _injector.getInstance(UpstreamFetcher.class);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author kurt
+ */
+public class MetricsServletTest {
+
+  @Test
+  public void writesNonFiniteGaugesAsNull() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+
+    registry.register("empty.ratio", new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        return Ratio.of(0, 0);
+      }
+    });
+    registry.register("infinite", new Gauge<Double>() {
+      @Override
+      public Double getValue() {
+        return Double.POSITIVE_INFINITY;
+      }
+    });
+    registry.register("count", new Gauge<Integer>() {
+      @Override
+      public Integer getValue() {
+        return 3;
+      }
+    });
+    registry.counter("after.gauges").inc();
+
+    StringWriter out = new StringWriter();
+    MetricsServlet.write(registry, out);
+
+    JsonObject json = new JsonParser().parse(out.toString()).getAsJsonObject();
+    JsonObject gauges = json.getAsJsonObject("gauges");
+
+    assertTrue(gauges.get("empty.ratio").isJsonNull());
+    assertTrue(gauges.get("infinite").isJsonNull());
+    assertEquals(3, gauges.get("count").getAsInt());
+    assertEquals(1, json.getAsJsonObject("counters").get("after.gauges")
+            .getAsLong());
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2014 Kurt Raschke <kurt@kurtraschke.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.kurtraschke.septa.gtfsrealtime.services;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.name.Names;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link UpstreamFetcher} against a local HTTP server that answers each
+ * request with the next scripted response.
+ *
+ * @author kurt
+ */
+public class UpstreamFetcherTest {
+
+  private static final int READ_TIMEOUT = 500;
+
+  private HttpServer _server;
+  private ExecutorService _serverExecutor;
+  private final LinkedBlockingQueue<Response> _responses = new LinkedBlockingQueue<>();
+  private final List<String> _ifNoneMatch = new ArrayList<>();
+  private UpstreamFetcher _fetcher;
+  private URI _uri;
+
+  @Before
+  public void setUp() throws Exception {
+    _server = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), 0), 0);
+    _server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange);
+      }
+    });
+    _serverExecutor = Executors.newCachedThreadPool();
+    _server.setExecutor(_serverExecutor);
+    _server.start();
+
+    _uri = new URI("http://127.0.0.1:" + _server.getAddress().getPort()
+            + "/TransitViewAll/");
+
+    _fetcher = Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bindConstant().annotatedWith(Names.named("upstream.readTimeout"))
+                .to(READ_TIMEOUT);
+      }
+    }).getInstance(UpstreamFetcher.class);
+    _fetcher.start();
+  }
+
+  @After
+  public void tearDown() {
+    _fetcher.stop();
+    _server.stop(0);
+    _serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void skipsUnmodifiedAndUnchangedBodies() throws Exception {
+    _responses.add(new Response(200, "\"v1\"", "one", 0));
+    _responses.add(new Response(304, null, null, 0));
+    _responses.add(new Response(200, "\"v2\"", "one", 0));
+    _responses.add(new Response(200, "\"v3\"", "two", 0));
+
+    assertEquals("one", string(_fetcher.fetchIfModified(_uri)));
+    assertNull(_fetcher.fetchIfModified(_uri));
+    assertNull(_fetcher.fetchIfModified(_uri));
+    assertEquals("two", string(_fetcher.fetchIfModified(_uri)));
+
+    synchronized (_ifNoneMatch) {
+      assertEquals(4, _ifNoneMatch.size());
+      assertNull(_ifNoneMatch.get(0));
+      assertEquals("\"v1\"", _ifNoneMatch.get(1));
+      assertEquals("\"v1\"", _ifNoneMatch.get(2));
+      assertEquals("\"v2\"", _ifNoneMatch.get(3));
+    }
+  }
+
+  @Test
+  public void returnsBodyAgainAfterInvalidate() throws Exception {
+    _responses.add(new Response(200, "\"v1\"", "one", 0));
+    _responses.add(new Response(200, "\"v1\"", "one", 0));
+
+    assertEquals("one", string(_fetcher.fetchIfModified(_uri)));
+    _fetcher.invalidate(_uri);
+    assertEquals("one", string(_fetcher.fetchIfModified(_uri)));
+
+    synchronized (_ifNoneMatch) {
+      assertNull(_ifNoneMatch.get(1));
+    }
+  }
+
+  @Test
+  public void failsOnErrorStatus() throws Exception {
+    _responses.add(new Response(503, null, "busy", 0));
+
+    try {
+      _fetcher.fetchIfModified(_uri);
+      fail("expected an IOException");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().contains("503"));
+    }
+  }
+
+  @Test
+  public void timesOutOnSlowResponse() throws Exception {
+    _responses.add(new Response(200, null, "late", 4 * READ_TIMEOUT));
+    _responses.add(new Response(200, null, "prompt", 0));
+
+    long start = System.nanoTime();
+
+    try {
+      _fetcher.fetchIfModified(_uri);
+      fail("expected an IOException");
+    } catch (IOException ex) {
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertTrue("gave up after " + elapsed + " ms",
+              elapsed < 3 * READ_TIMEOUT);
+    }
+
+    /* The timed-out connection is not reused. */
+    assertEquals("prompt", string(_fetcher.fetchIfModified(_uri)));
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    synchronized (_ifNoneMatch) {
+      _ifNoneMatch.add(exchange.getRequestHeaders().getFirst("If-None-Match"));
+    }
+
+    Response response = _responses.poll();
+
+    if (response == null) {
+      response = new Response(500, null, "no scripted response", 0);
+    }
+
+    try {
+      Thread.sleep(response.delay);
+    } catch (InterruptedException ex) {
+      exchange.close();
+      return;
+    }
+
+    if (response.etag != null) {
+      exchange.getResponseHeaders().set("ETag", response.etag);
+    }
+
+    if (response.body == null) {
+      exchange.sendResponseHeaders(response.status, -1);
+      exchange.close();
+      return;
+    }
+
+    byte[] body = response.body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(response.status, body.length);
+
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static String string(byte[] body) {
+    return (body != null) ? new String(body, StandardCharsets.UTF_8) : null;
+  }
+
+  private static class Response {
+
+    final int status;
+    final String etag;
+    final String body;
+    final long delay;
+
+    Response(int status, String etag, String body, long delay) {
+      this.status = status;
+      this.etag = etag;
+      this.body = body;
+      this.delay = delay;
+    }
+  }
+}